@@ -8,14 +8,22 @@ import java.nio.ByteBuffer;
  * 其中Meta区域包含将所有block串联起来的指针/个数信息,格式固定
  * 其中Data区域抽象为实际的数据载荷区域,但对于key/value来说,会自行定义此区域的存储方式,
  *      但在抽象层面上它们都是有效数据载荷
+ *
+ * block不再有对应的对象,只以bno来标识,所有的操作都是对mmap buffer中off(block的起始偏移)处的读写,
+ * 由PersistFile负责bno到off的换算
  *</pre>
  * @author seedshao
  *
  */
 public class Block
 {
-    public static final Block NILL= new Block();
-    public static final Block NOT_ENOUGH = new Block();
+    /**
+     * bno的特殊值,正常的bno从1开始
+     * NILL : 没有block
+     * NOT_ENOUGH : 空间不够,申请block失败
+     */
+    public static final int NILL = 0;
+    public static final int NOT_ENOUGH = -2;
 
     public static final byte[] emptyK = new byte[0];
     public static final byte[] emptyV = new byte[0];
@@ -28,159 +36,189 @@ public class Block
      * 4byte -- pointer to data (vPointer)[注意当keyLen>0时,此4byte才是vPointer]
      * .... -- key的数据区域
      *
-     * 不要修改它的limit等值
      */
     public static final int POS_NO = 0;
     public static final int POS_LEN = 4;
     public static final int POS_DATA = 8;
 
-    final int blockNo;	// 当前节点的no
-    final ByteBuffer bb;
-    private Block next;	// 后续节点
-    private int preNo;	// 前置节点的no
+    /**
+     * nextPointer=-1 : 链尾
+     * len=LEN_FREE : 在空闲链上的block,此时nextPointer指向下一个空闲block
+     */
+    public static final int BNO_END = -1;
+    public static final int LEN_FREE = -1;
+
+    /**
+     * 紧凑格式(见PersistFile.VERSION_COMPACT)的meta区只有一个4byte的word:
+     * bit31 -- 使用中
+     * bit30 -- 头block(len>0),len存放在其数据区的前C_LEN个byte
+     * 低30位 -- nextPointer,0表示链尾(使用中时)或空闲链尾(空闲时)
+     * 后继block不存len,len=0/LEN_FREE都由标志位表示,每个block省下4byte
+     */
+    public static final int C_USED = 0x80000000;
+    public static final int C_HEAD = 0x40000000;
+    public static final int C_NEXT_MASK = 0x3FFFFFFF;
+    public static final int C_META = 4;
+    public static final int C_LEN = 4;
 
     private Block(){
-        blockNo = -1;
-        bb = null;
     }
 
-    public Block(int bno, ByteBuffer bb)
+    //// ------- 静态方法, off为block在bb中的起始偏移
+    static int getMetaSize()
+    {
+        return POS_DATA;
+    }
+    static int getNextBNO(ByteBuffer bb, int off)
     {
-        blockNo = bno;
-        this.bb = bb;
+        return bb.getInt(off + POS_NO);
     }
-
-    int getNextBNO()
+    static void setNextBNO(ByteBuffer bb, int off, int bno)
     {
-        return getNextBNO(bb);
+        bb.putInt(off + POS_NO, bno);
     }
-    int getLen()
+    static int getLen(ByteBuffer bb, int off)
     {
-        return getLen(bb);
+        return bb.getInt(off + POS_LEN) ;
     }
-    void setLen(int v)
+    static void setLen(ByteBuffer bb, int off, int v)
     {
-        setLen(bb, v);
+        bb.putInt(off + POS_LEN, v);
     }
+
     /**
-     * 设置nextBNO，并且设置next
-     * @param b
+     * meta区(nextPointer+len)一次写8byte清0
      */
-    void setNext(Block b)
-    {
-    	if(b == null)
-    	{
-    		setNextBNO(bb, 0);
-    		join(null);
-    	} else
-    	{
-	        setNextBNO(bb, b.blockNo);
-	        join(b);
-    	}
+    static void free(ByteBuffer bb, int off)
+    {
+        bb.putLong(off, 0L);
+    }
+    static void markAsUsed(ByteBuffer bb, int off)
+    {
+        setNextBNO(bb, off, BNO_END);
+    }
+    static boolean isMarkUsed(ByteBuffer bb, int off)
+    {
+    	return getNextBNO(bb, off) != 0 && getLen(bb, off) != LEN_FREE;
+    }
+
+
+    //// ------- 紧凑格式,语义与上面的相同
+
+    static int cGetNextBNO(ByteBuffer bb, int off)
+    {
+        int w = bb.getInt(off);
+        if((w & C_NEXT_MASK) != 0)
+            return w & C_NEXT_MASK;
+        return (w & C_USED) != 0 ? BNO_END : NILL;
     }
     /**
-     * 设置当前节点的next,和b的preNo
-     * @warning : 此方法只在初始化block分析时用到
-     * @param b
+     * 只改nextPointer,保留标志位;bno<=0(链尾)存为0
      */
-    void join(Block b)
+    static void cSetNextBNO(ByteBuffer bb, int off, int bno)
     {
-        next = b;
-        if(b != null)
-        	b.preNo = blockNo;
+        int w = bb.getInt(off);
+        bb.putInt(off, (w & ~C_NEXT_MASK) | (bno > 0 ? bno : 0));
     }
-    Block getNext()
+    static int cGetLen(ByteBuffer bb, int off)
     {
-        return next;
+        int w = bb.getInt(off);
+        if((w & C_USED) == 0)
+            return LEN_FREE;
+        return (w & C_HEAD) != 0 ? bb.getInt(off + C_META) : 0;
     }
-    int getPreNo()
+    /**
+     * v>0 : 先写len再置头标志,不加锁读的线程看到标志时len已经写好
+     * v=0 : 清头标志
+     * v=LEN_FREE : 清使用中及头标志
+     */
+    static void cSetLen(ByteBuffer bb, int off, int v)
     {
-    	return preNo;
+        int w = bb.getInt(off);
+        if(v > 0)
+        {
+            bb.putInt(off + C_META, v);
+            bb.putInt(off, w | C_USED | C_HEAD);
+        } else if(v == 0)
+            bb.putInt(off, w & ~C_HEAD);
+        else
+            bb.putInt(off, w & C_NEXT_MASK);
     }
-
-    void free()
+    static void cFree(ByteBuffer bb, int off)
     {
-    	next = null;
-    	preNo = 0;
-        for(int i=0;i<getMetaSize();i++)
-            bb.put(i, (byte)0);
-        
+        bb.putInt(off, 0);
     }
-    void markAsUsed()
+    static void cMarkAsUsed(ByteBuffer bb, int off)
     {
-        setNextBNO(bb, -1);
+        bb.putInt(off, C_USED);
     }
-    boolean isMarkUsed()
+    static boolean cIsMarkUsed(ByteBuffer bb, int off)
     {
-    	return getNextBNO() != 0; 
+        return (bb.getInt(off) & C_USED) != 0;
     }
-    
-    
+    static String cToString(ByteBuffer bb, int off, int bno)
+    {
+        return "{class=Block,bno="+bno+",nextbno="+cGetNextBNO(bb, off)+",len="+cGetLen(bb, off)+",compact}";
+    }
+
     //// -------下面涉及实际数据区的操作,由Key/Value自行定义
-    
+
     /**
+     * 从block的position处开始读数据到dst,直到dst满或block结束,返回读取的长度
+     * 一次bulk拷贝,只用绝对位置访问bb,不改变共享的bb的position,可以并发读
+     * @param blockBytes
      * @param position
      * @param dst
      */
-    int _readAt(int position, ByteBuffer dst)
-    {
-        int k = 0;
-        bb.position(position);
-        while(dst.position()<dst.capacity() && bb.hasRemaining())
-        {
-            dst.put(bb.get());
-            k ++;
-        }
+    static int _readAt(ByteBuffer bb, int off, int blockBytes, int position, ByteBuffer dst)
+    {
+        int k = Math.min(dst.remaining(), blockBytes - position);
+        if(k <= 0)
+            return 0;
+        int p = dst.position();
+        dst.put(p, bb, off + position, k);
+        dst.position(p + k);
         return k;
     }
     /**
-     *  从v的offset处开始写入数据到buffer的position处开始,返回写入的长度
+     *  从v的offset处开始写入数据到block的position处开始,返回写入的长度
+     *  一次bulk拷贝,不改变共享的bb的position
      * @param v
      * @param offset
      * @return
      */
-    int _writeAt(int position, byte[] v, int offset)
+    static int _writeAt(ByteBuffer bb, int off, int blockBytes, int position, byte[] v, int offset)
     {
 
-        int keyBytes = bb.capacity() - (position > POS_DATA ? position : POS_DATA );
+        int keyBytes = blockBytes - position;	// position已在meta区之后
         int length = v.length - offset;
         length = keyBytes > length ? length : keyBytes;
-        bb.position(position);
-        bb.put(v, offset, length);
+        bb.put(off + position, v, offset, length);
         return length;
     }
 
-    //// ------- 静态方法
-    static int getMetaSize()
-    {
-        return POS_DATA;
-    }
-    static int getNextBNO(ByteBuffer bb)
-    {
-        return bb.getInt(POS_NO);
-    }
-    static void setNextBNO(ByteBuffer bb, int bno)
-    {
-        bb.putInt(POS_NO, bno);
-    }
-    static int getLen(ByteBuffer bb)
-    {
-        return bb.getInt(POS_LEN) ;
-    }
-    static void setLen(ByteBuffer bb, int v)
+    /**
+     * block的position处开始的len个字节与v[offset, offset+len)比较,遇到第一个不同的字节即返回false
+     */
+    static boolean _equalsAt(ByteBuffer bb, int off, int position, byte[] v, int offset, int len)
     {
-        bb.putInt(POS_LEN, v);
+        for(int i=off+position, end=i+len;i<end;i++)
+        {
+            if(bb.get(i) != v[offset++])
+                return false;
+        }
+        return true;
     }
 
-    public String toString()
+    static String toString(ByteBuffer bb, int off, int bno)
     {
-        return "{class=Block,bno="+blockNo+",nextbno="+getNextBNO()+",preNo="+getPreNo()+",len="+getLen()+",next="+next+"}";
+        return "{class=Block,bno="+bno+",nextbno="+getNextBNO(bb, off)+",len="+getLen(bb, off)+"}";
     }
-    
+
     public static class Holder {
-    	public Block block;
+    	public int bno = NILL;
     	public String toString(){
-    		return block.toString();
+    		return "{bno="+bno+"}";
     	}
     }
 }
@@ -1,57 +1,41 @@
 package seed.store;
 
-import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import org.apache.log4j.Logger;
 
 public abstract class BlockItr  implements Iterator<byte[]> {
-    private ByteBuffer _buffer;
+    private PersistFile file;
     private int currBlockCnt ;
     private int maxBlockCnt;
-    private int blockBytes;
 
-    protected BlockItr(ByteBuffer buffer, int maxBlockCnt, int blockBytes)
+    protected BlockItr(PersistFile file)
     {
-        _buffer = buffer.duplicate();
+        this.file = file;
         currBlockCnt = 1;   // 从1开始
-        this.maxBlockCnt = maxBlockCnt;
-        this.blockBytes = blockBytes;
+        this.maxBlockCnt = file.maxBlockCnt;
     }
-    protected Block searchNext(boolean ahead)
+    protected int searchNext(boolean ahead)
     {
-        int offset = 0;
-        ByteBuffer tmp;
         for(int i=currBlockCnt;i<=maxBlockCnt;i++)
         {
-            offset = (i-1) * blockBytes;
-            _buffer.position( offset );
-            _buffer.limit(offset+ blockBytes);
-            tmp = _buffer.slice();
             if(ahead)
             {
                 currBlockCnt = i+1;
             }
-            if(Block.getLen(tmp) > 0)
+            if(file.getLen(i) > 0)
             {    // 为key的第一块
-                return new Block(i, tmp);
+                return i;
             }
         }
-        return null;
+        return Block.NILL;
     }
     
     public void print(Logger logger)
     {
-    	int offset = 0;
-        ByteBuffer tmp;
         for(int i=1;i<=maxBlockCnt;i++)
         {
-            offset = (i-1) * blockBytes;
-            _buffer.position( offset );
-            _buffer.limit(offset+ blockBytes);
-            tmp = _buffer.slice();
-            Block b = new Block(i, tmp);
-            logger.info(b);
+            logger.info(file.toString(i));
         }
     }
 }
@@ -0,0 +1,911 @@
+package seed.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <pre>
+ * 一个mmap的block文件,格式为 Header|Reserved|Block...
+ * 1.Header : 固定HEADER_BYTES字节,记录版本,block几何信息,空闲链头,使用计数及是否正常关闭
+ *      除几何信息外,各项都随操作直接在mmap中更新
+ * 2.Reserved : 由使用者自行定义的区域(如key的hash目录)
+ * 3.Block : maxBlockCnt个blockBytes大小的block,bno从1开始
+ *
+ * block有两种格式,由Header中的version区分,已有的文件按它的version打开:
+ * VERSION : meta区为8byte的nextPointer+len
+ * VERSION_COMPACT : meta区为4byte的标志位+nextPointer,len只存在头block数据区的前4byte,见Block.C_USED
+ *
+ * 单个MappedByteBuffer最大只能2G,所以Header|Reserved单独映射,Block区按region分段映射,
+ * 每个region为2的幂个block且不超过构造时传入的regionBytes(缺省MAX_REGION_BYTES),block不会跨region,
+ * bno换算为(region, region内偏移),文件总大小可以远超2G
+ *
+ * 设置了setGrowth()时,block用完后按growFactor扩大文件并映射新的region,而不是申请失败;
+ * region数组是copy-on-write的,扩容时不加锁读的线程仍然可以使用旧的数组
+ *
+ * 空闲block通过nextPointer串成一个栈(空闲链),栈顶在Header中,申请/回收都是O(1),
+ * 且不需要在堆上保存空闲池;从未分配过的block(>hwm)不在空闲链上,也不需要初始化
+ * 多个block的链可以用allocRun()申请bno连续的一段,使链在文件中顺序存放
+ *
+ * 写block/header/reserved时按DIRTY_SHIFT大小的chunk记录脏位,flushDirty()只刷脏的范围,
+ * 而不是整个映射;force()/close()仍刷全部
+ *
+ * 正常close()后再打开时,直接使用Header中的信息,不需要扫描全部block;
+ * 只有未正常关闭(如进程崩溃)时,才扫描block重建空闲链及计数
+ *
+ * 版本兼容:只能打开VERSION及VERSION_COMPACT的文件,旧格式不做迁移,需要用原始数据重建store;
+ * 没有Header的文件(引入Header之前写的)及version 1~3的文件打开时抛出异常,异常中有文件的及期望的version;
+ * 只有空文件才当作新文件格式化,不会覆盖旧格式的数据
+ * </pre>
+ * @author seedshao
+ *
+ */
+class PersistFile
+{
+    Logger log = Logger.getLogger("kvstore");
+
+    /**
+     * header布局,每项为4byte的int
+     * 0  -- magic,区分idx/dat文件
+     * 4  -- version
+     * 8  -- blockBytes
+     * 12 -- maxBlockCnt : 当前的block数,扩容后随之更新
+     * 16 -- reservedBytes
+     * 20 -- freeHead : 空闲链的栈顶block
+     * 24 -- hwm : 分配过的最大bno,大于它的block都是空闲的
+     * 28 -- liveBlocks : 使用中的block数
+     * 32 -- liveCnt : 使用中的条目数(key数/value数)
+     * 36 -- clean : 1表示正常关闭
+     * 40 -- freeCnt : 空闲链上的block数
+     * 44 -- shard : 所属分片,(分片号<<16)|分片数,防止用不同的分片数打开
+     */
+    static final int HEADER_BYTES = 64;
+    static final int VERSION = 4;	// 2:空闲链放在文件中,3:分片,4:key前增加hash指纹,hash改为64位
+    static final int VERSION_COMPACT = 5;	// 紧凑的block格式,其它与VERSION相同
+
+    private static final int POS_MAGIC = 0;
+    private static final int POS_VERSION = 4;
+    private static final int POS_BLOCK_BYTES = 8;
+    private static final int POS_MAX_BLOCK_CNT = 12;
+    private static final int POS_RESERVED_BYTES = 16;
+    private static final int POS_FREE_HEAD = 20;
+    private static final int POS_HWM = 24;
+    private static final int POS_LIVE_BLOCKS = 28;
+    private static final int POS_LIVE_CNT = 32;
+    private static final int POS_CLEAN = 36;
+    private static final int POS_FREE_CNT = 40;
+    private static final int POS_SHARD = 44;
+
+    private static final int CLEAN = 1;
+    private static final int RECOVER_CHUNK = 1 << 16;	// 恢复时每个并行任务扫描的block数
+    private static final int DIRTY_SHIFT = 16;	// 脏位的粒度,每64K一位
+    private static final int RUN_SCAN = 64;	// allocRun()申请n个block时最多在空闲链上找RUN_SCAN*n个
+
+    /*
+     * 每个region映射的最大字节数的缺省值,构造时可以传入别的大小(如测试时调小以覆盖多region的情况)
+     */
+    static final int MAX_REGION_BYTES = 1 << 30;
+
+    private final FileChannel fch;
+    private final MappedByteBuffer buffer;	// Header|Reserved
+    private volatile Regions regions = new Regions(new MappedByteBuffer[0], new AtomicLongArray[0]);	// Block区
+    private final AtomicLongArray headDirty;	// buffer的脏位
+    private final int regionShift;	// 每个region有(1<<regionShift)个block
+    private final int regionMask;
+    private final boolean compact;	// 紧凑格式,见VERSION_COMPACT
+    private float growFactor;	// <=1时不扩容
+    private int growLimit;	// 扩容的最大block数
+    final int blockBytes;
+    final int metaBytes;	// block中数据区的偏移
+    final int lenBytes;		// 头block的数据区中存放len的字节数,紧凑格式时为4
+    volatile int maxBlockCnt;
+    final int reservedBytes;
+    final int dataOffset;	// 第一个block在文件中的偏移
+
+    /*
+     * Block区各region的映射及其脏位,扩容时整个替换,
+     * 不加锁的flushDirty()一次读到的映射与脏位总是对应的,不会用旧的小region清掉新region的脏位
+     */
+    private static final class Regions
+    {
+        final MappedByteBuffer[] buffers;
+        final AtomicLongArray[] dirty;
+
+        Regions(MappedByteBuffer[] buffers, AtomicLongArray[] dirty)
+        {
+            this.buffers = buffers;
+            this.dirty = dirty;
+        }
+    }
+
+    /**
+     * 计算文件需要的字节数
+     */
+    static long calcFileBytes(int blockBytes, int maxBlockCnt, int reservedBytes)
+    {
+        return HEADER_BYTES + reservedBytes + (long)maxBlockCnt * blockBytes;
+    }
+
+    /**
+     * 格式的meta字节数
+     */
+    static int metaBytesOf(boolean compact)
+    {
+        return compact ? Block.C_META : Block.getMetaSize();
+    }
+
+    /*
+     * 每个region的block数取2的幂,使bno到region的换算为移位
+     */
+    private static int calcRegionShift(int blockBytes, int regionBytes)
+    {
+        int shift = 0;
+        while(((long)blockBytes << (shift + 1)) <= regionBytes && shift < 30)
+            shift ++;
+        return shift;
+    }
+
+    /**
+     * 编码分片信息
+     * @param no : 分片号
+     * @param shards : 分片数
+     * @return
+     */
+    static int encodeShard(int no, int shards)
+    {
+        return (no << 16) | (shards & 0xFFFF);
+    }
+
+    /**
+     * @param fch
+     * @param magic
+     * @param dataBytes : 每个block数据区的字节数,blockBytes=metaBytes+dataBytes
+     * @param compact : 新文件是否使用紧凑格式,已有文件按其version
+     * @param maxBlockCnt : block数,已有文件扩容过时以文件中的为准
+     * @param reservedBytes
+     * @param shard : 见encodeShard()
+     * @param regionBytes : 每个region映射的最大字节数,只影响映射,与文件布局无关
+     * @throws IOException
+     */
+    PersistFile(FileChannel fch, int magic, int dataBytes, boolean compact, int maxBlockCnt, int reservedBytes, int shard,
+            int regionBytes) throws IOException
+    {
+        if(maxBlockCnt <= 0)
+            throw new IllegalArgumentException("PersistFile():maxBlockCnt="+maxBlockCnt+"<=0");
+        this.fch = fch;
+        this.reservedBytes = reservedBytes;
+        this.dataOffset = HEADER_BYTES + reservedBytes;
+        if(dataOffset < HEADER_BYTES)
+            throw new IllegalArgumentException("PersistFile():reservedBytes="+reservedBytes+" too large");
+        boolean empty = fch.size() == 0;
+        int v = empty ? 0 : readVersion(fch, magic);	// 在map扩大文件之前检查
+        this.buffer = fch.map(MapMode.READ_WRITE, 0, dataOffset);
+        this.headDirty = newDirty(dataOffset);
+
+        if(!empty)
+        {	// 已有文件,格式以文件中的为准
+            if(compact != (v == VERSION_COMPACT))
+                log.info("PersistFile(),open version="+v+" file as is");
+            compact = v == VERSION_COMPACT;
+        }
+        this.compact = compact;
+        this.metaBytes = metaBytesOf(compact);
+        this.lenBytes = compact ? Block.C_LEN : 0;
+        this.blockBytes = metaBytes + dataBytes;
+        if(dataBytes <= lenBytes || blockBytes > regionBytes)
+            throw new IllegalArgumentException("PersistFile():dataBytes="+dataBytes+" out of ("+lenBytes+","+(regionBytes-metaBytes)+"]");
+        if(compact && maxBlockCnt > Block.C_NEXT_MASK)
+            throw new IllegalArgumentException("PersistFile():maxBlockCnt="+maxBlockCnt+">"+Block.C_NEXT_MASK+" in compact format");
+        this.regionShift = calcRegionShift(blockBytes, regionBytes);
+        this.regionMask = (1 << regionShift) - 1;
+
+        if(empty)
+        {	// 新文件
+            mapRegions(maxBlockCnt);
+            this.maxBlockCnt = maxBlockCnt;
+            format(magic, shard);
+        } else
+        {
+            checkHeader(POS_BLOCK_BYTES, blockBytes, "blockBytes");
+            checkHeader(POS_RESERVED_BYTES, reservedBytes, "reservedBytes");
+            checkHeader(POS_SHARD, shard, "shard");
+            // 文件扩容过则比传入的大
+            int cnt = Math.max(maxBlockCnt, getHeader(POS_MAX_BLOCK_CNT));
+            mapRegions(cnt);
+            this.maxBlockCnt = cnt;
+            setHeader(POS_MAX_BLOCK_CNT, cnt);
+            if(buffer.getInt(POS_CLEAN) == CLEAN)
+                log.info("open(),clean,hwm="+getHeader(POS_HWM)+",liveBlocks="+getHeader(POS_LIVE_BLOCKS)
+                        +",liveCnt="+getLiveCnt()+",free="+getHeader(POS_FREE_CNT));
+            else
+                recover();
+        }
+        // 打开期间都视为未正常关闭,直到close()
+        setHeader(POS_CLEAN, 0);
+    }
+
+    /*
+     * 映射block区使其能容纳blockCnt个block,已映射的整region直接复用,
+     * 最后一个不满的region重新映射,映射好后才替换regions
+     */
+    private void mapRegions(int blockCnt) throws IOException
+    {
+        int regionCnt = (int)(((long)blockCnt + regionMask) >>> regionShift);
+        Regions old = regions;
+        MappedByteBuffer[] rs = Arrays.copyOf(old.buffers, regionCnt);
+        AtomicLongArray[] ds = Arrays.copyOf(old.dirty, regionCnt);
+        for(int i=0;i<regionCnt;i++)
+        {
+            int first = i << regionShift;	// 此region第一个block的(bno-1)
+            int bytes = Math.min(blockCnt - first, 1 << regionShift) * blockBytes;
+            if(rs[i] == null || rs[i].capacity() != bytes)
+            {
+                rs[i] = fch.map(MapMode.READ_WRITE, dataOffset + (long)first * blockBytes, bytes);
+                AtomicLongArray d = ds[i];
+                ds[i] = newDirty(bytes);
+                for(int w=0;d!=null && w<d.length();w++)	// 重新映射的region保留原来的脏位
+                    ds[i].set(w, d.get(w));
+            }
+        }
+        regions = new Regions(rs, ds);
+    }
+
+    //// ------- 脏位
+
+    private static AtomicLongArray newDirty(int bytes)
+    {
+        return new AtomicLongArray(((bytes - 1) >>> DIRTY_SHIFT >>> 6) + 1);
+    }
+
+    /*
+     * 标记pos所在的chunk为脏,必须在写完之后标记,
+     * 这样flushDirty()清位之前的写一定会被这次刷下去,清位之后的写会重新置位
+     */
+    private static void markDirty(AtomicLongArray dirty, int pos)
+    {
+        int chunk = pos >>> DIRTY_SHIFT;
+        int w = chunk >>> 6;
+        long bit = 1L << (chunk & 63);
+        for(;;)
+        {
+            long v = dirty.get(w);
+            if((v & bit) != 0 || dirty.compareAndSet(w, v, v | bit))
+                return ;
+        }
+    }
+
+    private void markBlock(int bno)
+    {
+        AtomicLongArray dirty = regions.dirty[(bno - 1) >>> regionShift];
+        int off = offsetOf(bno);
+        markDirty(dirty, off);
+        markDirty(dirty, off + blockBytes - 1);	// block可能跨两个chunk
+    }
+
+    /**
+     * 标记reserved区pos处被写过
+     * @param pos : 相对reserved区起始的偏移
+     */
+    void markReserved(int pos)
+    {
+        markDirty(headDirty, HEADER_BYTES + pos);
+    }
+
+    /*
+     * 清掉bb的脏位并刷这些chunk,相邻的chunk合并为一次force,返回刷的字节数
+     */
+    private static long forceDirty(MappedByteBuffer bb, AtomicLongArray dirty)
+    {
+        long bytes = 0;
+        int from = -1, to = -1;	// 待刷的chunk范围[from, to)
+        for(int w=0;w<dirty.length();w++)
+        {
+            if(dirty.get(w) == 0)
+                continue;
+            for(long v = dirty.getAndSet(w, 0);v != 0;v &= v - 1)
+            {
+                int chunk = (w << 6) + Long.numberOfTrailingZeros(v);
+                if(chunk == to)
+                {
+                    to ++;
+                    continue;
+                }
+                bytes += forceRange(bb, from, to);
+                from = chunk;
+                to = chunk + 1;
+            }
+        }
+        return bytes + forceRange(bb, from, to);
+    }
+
+    private static long forceRange(MappedByteBuffer bb, int from, int to)
+    {
+        if(from < 0)
+            return 0;
+        int start = from << DIRTY_SHIFT;
+        int len = Math.min(bb.capacity(), to << DIRTY_SHIFT) - start;
+        if(len <= 0)
+            return 0;
+        bb.force(start, len);
+        return len;
+    }
+
+    /**
+     * 只刷上次以来写过的chunk,最后刷header,返回刷的字节数
+     * 不需要加锁,与写并发时,并发的写由下一次flushDirty()负责
+     * @return
+     */
+    long flushDirty()
+    {
+        Regions r = regions;	// 只读一次,与扩容并发时也是同一次映射的region与脏位
+        long bytes = 0;
+        for(int i=0;i<r.buffers.length;i++)
+            bytes += forceDirty(r.buffers[i], r.dirty[i]);
+        return bytes + forceDirty(buffer, headDirty);
+    }
+
+    /**
+     * 设置自动扩容
+     * @param growFactor : 每次扩容后的block数为当前的growFactor倍,<=1时不扩容
+     * @param maxFileBytes : 文件最多扩到的字节数
+     */
+    void setGrowth(float growFactor, long maxFileBytes)
+    {
+        this.growFactor = growFactor;
+        // 紧凑格式的nextPointer只有30位
+        int maxCnt = compact ? Block.C_NEXT_MASK : Integer.MAX_VALUE;
+        this.growLimit = (int)Math.max(0, Math.min(maxCnt, (maxFileBytes - dataOffset) / blockBytes));
+    }
+
+    /*
+     * 扩容,映射好新的region后才更新maxBlockCnt,
+     * 不加锁读的线程看到新的maxBlockCnt时一定也能看到新的region
+     */
+    private boolean grow()
+    {
+        int cnt = maxBlockCnt;
+        if(growFactor <= 1 || cnt >= growLimit)
+            return false;
+        int newCnt = (int)Math.min(growLimit, Math.max(cnt + 1L, (long)(cnt * (double)growFactor)));
+        try
+        {
+            mapRegions(newCnt);
+        } catch (IOException e)
+        {
+            log.error("grow(),maxBlockCnt="+cnt+",newCnt="+newCnt+",map failed", e);
+            return false;
+        }
+        maxBlockCnt = newCnt;
+        setHeader(POS_MAX_BLOCK_CNT, newCnt);
+        log.warn("grow(),maxBlockCnt="+cnt+"->"+newCnt+",regions="+regions.buffers.length);
+        return true;
+    }
+
+    private int getHeader(int pos)
+    {
+        return buffer.getInt(pos);
+    }
+
+    private void setHeader(int pos, int v)
+    {
+        buffer.putInt(pos, v);
+        markDirty(headDirty, pos);
+    }
+
+    /*
+     * 读已有文件的magic及version,不是当前版本的文件抛出异常,文件原样不动
+     */
+    private static int readVersion(FileChannel fch, int magic) throws IOException
+    {
+        ByteBuffer bb = ByteBuffer.allocate(POS_VERSION + 4);
+        while(bb.hasRemaining() && fch.read(bb, bb.position()) > 0);
+        int m = bb.getInt(POS_MAGIC);
+        if(m != magic)
+            throw new IllegalArgumentException("PersistFile():magic="+Integer.toHexString(m)+",expect="+Integer.toHexString(magic)
+                    +",not a file of this kind,or written before the versioned header(version 1) or by an interrupted format,"
+                    +"rebuild the store");
+        int v = bb.getInt(POS_VERSION);
+        if(v != VERSION && v != VERSION_COMPACT)
+            throw new IllegalArgumentException("PersistFile():unsupported version="+v+",expect="+VERSION+" or "+VERSION_COMPACT
+                    +",files of older versions are not migrated,rebuild the store");
+        return v;
+    }
+
+    private void checkHeader(int pos, int expect, String name)
+    {
+        int v = buffer.getInt(pos);
+        if(v != expect)
+            throw new IllegalArgumentException("PersistFile():"+name+"="+v+",expect="+expect);
+    }
+
+    private void format(int magic, int shard)
+    {
+        buffer.putInt(POS_VERSION, compact ? VERSION_COMPACT : VERSION);
+        buffer.putInt(POS_BLOCK_BYTES, blockBytes);
+        buffer.putInt(POS_MAX_BLOCK_CNT, maxBlockCnt);
+        buffer.putInt(POS_RESERVED_BYTES, reservedBytes);
+        buffer.putInt(POS_SHARD, shard);
+        setHeader(POS_MAGIC, magic);	// magic最后写,格式化中途崩溃的文件打开时报错而不是当作有效的header
+    }
+
+    /**
+     * 未正常关闭,扫描block重建空闲链及计数
+     * block区按RECOVER_CHUNK分段,在ForkJoinPool上并行扫描,再按段的顺序合并结果:
+     * 1.统计各段的使用数及最大的已用bno,得到hwm
+     * 2.各段把自己<=hwm的空闲block串成一段空闲链,最后把各段的链按顺序接起来
+     */
+    private void recover()
+    {
+        long start = System.currentTimeMillis();
+        int chunks = (maxBlockCnt + RECOVER_CHUNK - 1) / RECOVER_CHUNK;
+        ScanResult[] results = new ScanResult[chunks];
+        ForkJoinPool.commonPool().invoke(new ScanTask(results, 0, chunks, 0));
+        // -- 合并计数
+        int hwm = 0, liveBlocks = 0, liveCnt = 0;
+        for(ScanResult r : results)
+        {
+            liveBlocks += r.liveBlocks;
+            liveCnt += r.liveCnt;
+            if(r.maxUsed > hwm)
+                hwm = r.maxUsed;
+        }
+        // -- 串空闲链,按段的顺序接起来,使链上的bno升序
+        int freeHead = Block.NILL, freeCnt = 0;
+        if(hwm > 0)
+        {
+            ForkJoinPool.commonPool().invoke(new ScanTask(results, 0, chunks, hwm));
+            int last = Block.NILL;
+            for(ScanResult r : results)
+            {
+                if(r.freeCnt == 0)
+                    continue;
+                if(last == Block.NILL)
+                    freeHead = r.firstFree;
+                else
+                    setNextBNO(last, r.firstFree);
+                last = r.lastFree;
+                freeCnt += r.freeCnt;
+            }
+        }
+        setHeader(POS_HWM, hwm);
+        setHeader(POS_LIVE_BLOCKS, liveBlocks);
+        setHeader(POS_LIVE_CNT, liveCnt);
+        setHeader(POS_FREE_HEAD, freeHead);
+        setHeader(POS_FREE_CNT, freeCnt);
+        log.warn("recover(),hwm="+hwm+",liveBlocks="+liveBlocks+",liveCnt="+liveCnt+",free="+freeCnt
+                +",chunks="+chunks+",cost="+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    /*
+     * 一段block的扫描结果
+     */
+    private static class ScanResult
+    {
+        int liveBlocks;
+        int liveCnt;
+        int maxUsed;
+        int firstFree;	// 此段空闲链的第一个/最后一个block
+        int lastFree;
+        int freeCnt;
+    }
+
+    /*
+     * 扫描[from, to)段,每段为RECOVER_CHUNK个block,各段之间没有共享的写,可以并行
+     * hwm=0 : 只统计计数
+     * hwm>0 : 把段内<=hwm的空闲block串成链
+     */
+    private class ScanTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final ScanResult[] results;
+        private final int from;
+        private final int to;
+        private final int hwm;
+
+        ScanTask(ScanResult[] results, int from, int to, int hwm)
+        {
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.hwm = hwm;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if(to - from > 1)
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ScanTask(results, from, mid, hwm), new ScanTask(results, mid, to, hwm));
+                return;
+            }
+            int first = from * RECOVER_CHUNK + 1;
+            int last = Math.min(maxBlockCnt, first + RECOVER_CHUNK - 1);
+            if(hwm == 0)
+                count(first, last);
+            else
+                link(first, Math.min(last, hwm));
+        }
+
+        private void count(int first, int last)
+        {
+            ScanResult r = new ScanResult();
+            for(int i=first;i<=last;i++)
+            {
+                if(isUsed(i))
+                {
+                    r.liveBlocks ++;
+                    r.maxUsed = i;
+                    if(getLen(i) > 0)	// 头block
+                        r.liveCnt ++;
+                }
+            }
+            results[from] = r;
+        }
+
+        private void link(int first, int last)
+        {
+            ScanResult r = results[from];
+            int pre = Block.NILL;
+            for(int i=first;i<=last;i++)
+            {
+                if(isUsed(i))
+                    continue;
+                setLen(i, Block.LEN_FREE);
+                setNextBNO(i, Block.NILL);
+                if(pre == Block.NILL)
+                    r.firstFree = i;
+                else
+                    setNextBNO(pre, i);
+                pre = i;
+                r.freeCnt ++;
+            }
+            r.lastFree = pre;
+        }
+    }
+
+    /**
+     * bno所在的region
+     */
+    ByteBuffer regionOf(int bno)
+    {
+        return regions.buffers[(bno - 1) >>> regionShift];
+    }
+
+    /**
+     * bno在所在region中的偏移
+     */
+    int offsetOf(int bno)
+    {
+        return ((bno - 1) & regionMask) * blockBytes;
+    }
+
+    //// ------- 以bno访问block,见Block
+
+    int getNextBNO(int bno)
+    {
+        return getNextBNO(regionOf(bno), offsetOf(bno));
+    }
+    void setNextBNO(int bno, int next)
+    {
+        setNextBNO(regionOf(bno), offsetOf(bno), next);
+        markBlock(bno);
+    }
+    int getLen(int bno)
+    {
+        ByteBuffer bb = regionOf(bno);
+        return compact ? Block.cGetLen(bb, offsetOf(bno)) : Block.getLen(bb, offsetOf(bno));
+    }
+    void setLen(int bno, int v)
+    {
+        setLen(regionOf(bno), offsetOf(bno), v);
+        markBlock(bno);
+    }
+    boolean isUsed(int bno)
+    {
+        ByteBuffer bb = regionOf(bno);
+        return compact ? Block.cIsMarkUsed(bb, offsetOf(bno)) : Block.isMarkUsed(bb, offsetOf(bno));
+    }
+    /**
+     * 设置bno的后继为next,next为NILL时标记为链尾
+     */
+    void setNext(int bno, int next)
+    {
+        setNextBNO(bno, next == Block.NILL ? Block.BNO_END : next);
+    }
+    int readAt(int bno, int position, ByteBuffer dst)
+    {
+        return Block._readAt(regionOf(bno), offsetOf(bno), blockBytes, position, dst);
+    }
+    int writeAt(int bno, int position, byte[] v, int offset)
+    {
+        int n = Block._writeAt(regionOf(bno), offsetOf(bno), blockBytes, position, v, offset);
+        markBlock(bno);
+        return n;
+    }
+    boolean equalsAt(int bno, int position, byte[] v, int offset, int len)
+    {
+        return Block._equalsAt(regionOf(bno), offsetOf(bno), position, v, offset, len);
+    }
+    int getIntAt(int bno, int position)
+    {
+        return regionOf(bno).getInt(offsetOf(bno) + position);
+    }
+    /**
+     * block中[position, position+len)的只读视图,不拷贝
+     */
+    ByteBuffer slice(int bno, int position, int len)
+    {
+        ByteBuffer bb = regionOf(bno).duplicate();
+        int off = offsetOf(bno) + position;
+        bb.limit(off + len);
+        bb.position(off);
+        return bb.slice().asReadOnlyBuffer();
+    }
+    void free(int bno)
+    {
+        ByteBuffer bb = regionOf(bno);
+        if(compact)
+            Block.cFree(bb, offsetOf(bno));
+        else
+            Block.free(bb, offsetOf(bno));
+        markBlock(bno);
+    }
+    String toString(int bno)
+    {
+        if(bno <= 0 || bno > maxBlockCnt)
+            return "{bno="+bno+"}";
+        ByteBuffer bb = regionOf(bno);
+        return compact ? Block.cToString(bb, offsetOf(bno), bno) : Block.toString(bb, offsetOf(bno), bno);
+    }
+
+    //// ------- 按格式访问meta区,不标记脏位
+
+    private int getNextBNO(ByteBuffer bb, int off)
+    {
+        return compact ? Block.cGetNextBNO(bb, off) : Block.getNextBNO(bb, off);
+    }
+    private void setNextBNO(ByteBuffer bb, int off, int next)
+    {
+        if(compact)
+            Block.cSetNextBNO(bb, off, next);
+        else
+            Block.setNextBNO(bb, off, next);
+    }
+    private void setLen(ByteBuffer bb, int off, int v)
+    {
+        if(compact)
+            Block.cSetLen(bb, off, v);
+        else
+            Block.setLen(bb, off, v);
+    }
+    /*
+     * 清空meta区并标记为使用中(链尾)
+     */
+    private void initUsed(ByteBuffer bb, int off)
+    {
+        if(compact)
+            Block.cMarkAsUsed(bb, off);
+        else
+        {
+            Block.free(bb, off);
+            Block.markAsUsed(bb, off);
+        }
+    }
+
+    /**
+     * 取bno在链上的后继block,没有则返回NILL
+     * @param bno
+     * @return
+     */
+    int next(int bno)
+    {
+        return valid(getNextBNO(bno));
+    }
+
+    /**
+     * bno不合法时返回NILL(如链尾的-1)
+     */
+    int valid(int bno)
+    {
+        if(bno <= 0 || bno > maxBlockCnt)
+            return Block.NILL;
+        return bno;
+    }
+
+    /**
+     * 空闲block数
+     */
+    int freeCount()
+    {
+        return getHeader(POS_FREE_CNT) + maxBlockCnt - getHeader(POS_HWM);
+    }
+
+    /**
+     * 文件最多能有的block数,设置了扩容时为扩到上限后的block数
+     */
+    int capacity()
+    {
+        return growFactor > 1 ? Math.max(maxBlockCnt, growLimit) : maxBlockCnt;
+    }
+
+    /**
+     * 保证至少有n个空闲block,不够时扩容,扩容后仍不够返回false
+     * @param n
+     * @return
+     */
+    boolean ensureFree(int n)
+    {
+        while(freeCount() < n)
+        {
+            if(!grow())
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 申请一个block并标记为使用中,没有空闲block(且不能扩容)时返回NILL
+     * 先从空闲链的栈顶取,空闲链为空时才使用hwm之后的新block
+     * @return
+     */
+    int alloc()
+    {
+        int bno = getHeader(POS_FREE_HEAD);
+        if(bno != Block.NILL)
+        {
+            setHeader(POS_FREE_HEAD, valid(getNextBNO(bno)));
+            setHeader(POS_FREE_CNT, getHeader(POS_FREE_CNT) - 1);
+        } else
+        {
+            bno = getHeader(POS_HWM);
+            if(bno >= maxBlockCnt && !grow())
+                return Block.NILL;
+            setHeader(POS_HWM, ++bno);
+        }
+        initUsed(regionOf(bno), offsetOf(bno));
+        markBlock(bno);
+        setHeader(POS_LIVE_BLOCKS, getHeader(POS_LIVE_BLOCKS) + 1);
+        return bno;
+    }
+
+    /**
+     * 申请n个bno连续的block,依次链好(b->b+1->...,最后一个为BNO_END)并标记为使用中,
+     * 使一条链在文件中顺序存放,读的时候顺序访问页,不用每个block跳到别处:
+     * 1.在空闲链的前RUN_SCAN*n个block中找n个相邻且bno连续(升序或降序,如释放的一个连续的value)的,从链上摘下
+     * 2.找不到时,hwm之后还有n个新block则从hwm之后取
+     * 都不行时返回NILL,由调用者逐个alloc(),不会为了连续而扩容
+     * @param n
+     * @return 第一个block
+     */
+    int allocRun(int n)
+    {
+        if(n <= 0)
+            return Block.NILL;
+        int first = Block.NILL;
+        if(getHeader(POS_FREE_CNT) >= n)
+        {
+            /*
+             * start : 当前这一段连续block在空闲链上的第一个,startPre为它在链上的前一个
+             * len/step : 这一段的长度及方向(+1/-1)
+             */
+            int pre = Block.NILL, start = Block.NILL, startPre = Block.NILL, len = 0, step = 0;
+            int b = valid(getHeader(POS_FREE_HEAD));
+            for(int i=0, limit=RUN_SCAN * n;b != Block.NILL && i<limit;i++)
+            {
+                if(len > 0 && (b - pre == 1 || b - pre == -1) && (len == 1 || b - pre == step))
+                {
+                    step = b - pre;
+                    len ++;
+                } else
+                {
+                    start = b;
+                    startPre = pre;
+                    len = 1;
+                }
+                if(len == n)
+                {
+                    int after = valid(getNextBNO(b));
+                    if(startPre == Block.NILL)
+                        setHeader(POS_FREE_HEAD, after);
+                    else
+                        setNextBNO(startPre, after);
+                    setHeader(POS_FREE_CNT, getHeader(POS_FREE_CNT) - n);
+                    first = Math.min(start, b);
+                    break;
+                }
+                pre = b;
+                b = valid(getNextBNO(b));
+            }
+        }
+        if(first == Block.NILL)
+        {
+            int hwm = getHeader(POS_HWM);
+            if(maxBlockCnt - hwm < n)
+                return Block.NILL;
+            first = hwm + 1;
+            setHeader(POS_HWM, hwm + n);
+        }
+        for(int b=first;b<first + n;b++)
+        {
+            ByteBuffer bb = regionOf(b);
+            int off = offsetOf(b);
+            initUsed(bb, off);
+            if(b < first + n - 1)
+                setNextBNO(bb, off, b + 1);
+            markBlock(b);
+        }
+        setHeader(POS_LIVE_BLOCKS, getHeader(POS_LIVE_BLOCKS) + n);
+        return first;
+    }
+
+    /**
+     * 回收block,压入空闲链的栈顶
+     * @param bno
+     */
+    void recycle(int bno)
+    {
+        if(bno == Block.NILL)
+            return ;
+        ByteBuffer bb = regionOf(bno);
+        int off = offsetOf(bno);
+        setLen(bb, off, Block.LEN_FREE);
+        setNextBNO(bb, off, getHeader(POS_FREE_HEAD));
+        markBlock(bno);
+        setHeader(POS_FREE_HEAD, bno);
+        setHeader(POS_FREE_CNT, getHeader(POS_FREE_CNT) + 1);
+        setHeader(POS_LIVE_BLOCKS, getHeader(POS_LIVE_BLOCKS) - 1);
+    }
+
+    int getLiveCnt()
+    {
+        return getHeader(POS_LIVE_CNT);
+    }
+
+    void addLiveCnt(int delta)
+    {
+        setHeader(POS_LIVE_CNT, getLiveCnt() + delta);
+    }
+
+    /**
+     * 取reserved区域,position=0
+     * @return
+     */
+    ByteBuffer reserved()
+    {
+        ByteBuffer bb = buffer.duplicate();
+        bb.position(HEADER_BYTES);
+        bb.limit(dataOffset);
+        return bb.slice();
+    }
+
+    /**
+     * block区及header刷盘,不需要加锁,与写并发时刷下去的是某一时刻的内容
+     */
+    void force()
+    {
+        for(MappedByteBuffer region : regions.buffers)
+            region.force();
+        buffer.force();
+    }
+
+    /**
+     * header各项已经是最新的了,刷盘后标记正常关闭
+     */
+    void close()
+    {
+        force();
+        setHeader(POS_CLEAN, CLEAN);
+        buffer.force();
+        log.info("close(),hwm="+getHeader(POS_HWM)+",liveBlocks="+getHeader(POS_LIVE_BLOCKS)
+                +",liveCnt="+getLiveCnt()+",free="+getHeader(POS_FREE_CNT));
+    }
+}
@@ -0,0 +1,157 @@
+package seed.store;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <pre>
+ * 按持久化策略对store的各分片刷盘,每次只刷上次以来写过的范围(见PersistFile.flushDirty())
+ * 1.PERIODIC : 后台线程每隔intervalMs刷一次,最多丢失intervalMs内的写,
+ *      脏的范围小而频繁地刷下去,避免一次回写整个大文件
+ * 2.GROUP_COMMIT : 写线程写完后调用sync()等待刷盘,同时在等的写线程共用一次force(),
+ *      由其中一个线程(leader)来刷,其它的等它刷完;刷盘期间到达的写由下一次force()覆盖
+ * </pre>
+ * @author seedshao
+ *
+ */
+class PersistFlusher
+{
+	Logger log = Logger.getLogger("kvstore");
+
+    private final PersistSegment[] segments;
+    private final PersistKVStore.Durability mode;
+    private final long intervalMs;
+    private Thread worker;
+
+    /*
+     * group commit的序号:
+     * writes : 已完成并要求刷盘的写的个数,每个写取一个序号
+     * synced : 此序号及之前的写都已刷盘
+     */
+    private long writes;
+    private long synced;
+    private boolean forcing;
+
+    PersistFlusher(PersistSegment[] segments, PersistKVStore.Durability mode, long intervalMs)
+    {
+        this.segments = segments;
+        this.mode = mode;
+        this.intervalMs = intervalMs;
+        if(mode == PersistKVStore.Durability.PERIODIC)
+        {
+            if(intervalMs <= 0)
+                throw new IllegalArgumentException("PersistFlusher():intervalMs="+intervalMs+"<=0");
+            worker = new Thread("kvstore-flusher") {
+                public void run()
+                {
+                    loop();
+                }
+            };
+            worker.setDaemon(true);
+            worker.start();
+        }
+    }
+
+    /*
+     * 定期刷盘,直到stop()
+     */
+    private void loop()
+    {
+        for(;;)
+        {
+            try
+            {
+                Thread.sleep(intervalMs);
+            } catch (InterruptedException e)
+            {
+                return;
+            }
+            try
+            {
+                long bytes = forceAll();
+                if(log.isDebugEnabled())
+                    log.debug("loop(),flushed "+bytes+" bytes");
+            } catch (RuntimeException e)
+            {
+                log.error("loop(),force failed", e);
+            }
+        }
+    }
+
+    private long forceAll()
+    {
+        long bytes = 0;
+        for(PersistSegment seg : segments)
+            bytes += seg.flushDirty();
+        return bytes;
+    }
+
+    /**
+     * 一个写完成后调用,GROUP_COMMIT时阻塞到此写已刷盘,其它模式直接返回
+     */
+    void sync()
+    {
+        if(mode != PersistKVStore.Durability.GROUP_COMMIT)
+            return ;
+        long ticket;
+        synchronized(this)
+        {
+            ticket = ++writes;
+        }
+        for(;;)
+        {
+            long target;
+            synchronized(this)
+            {
+                while(forcing && synced < ticket)
+                {
+                    try
+                    {
+                        wait();
+                    } catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                        return ;
+                    }
+                }
+                if(synced >= ticket)
+                    return ;
+                // 成为leader,本次force覆盖到目前为止的所有写
+                forcing = true;
+                target = writes;
+            }
+            boolean ok = false;
+            try
+            {
+                forceAll();
+                ok = true;
+            } finally
+            {
+                synchronized(this)
+                {
+                    forcing = false;
+                    if(ok && target > synced)	// 失败时由等待的线程重新刷
+                        synced = target;
+                    notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止后台刷盘线程,之后的刷盘由close()负责
+     */
+    void stop()
+    {
+        if(worker == null)
+            return ;
+        worker.interrupt();
+        try
+        {
+            worker.join();
+        } catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        worker = null;
+    }
+}
@@ -1,195 +1,866 @@
 package seed.store;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import org.apache.log4j.Logger;
 
-import seed.store.Block.Holder;
+import seed.utils.P;
 import seed.utils.Utils;
 /**
  * a persist key-value store basis of mmap
+ * 按hash分成多个分片(PersistSegment),每个分片有独立的文件,锁及空闲链,
+ * 不同分片上的写可以并行
+ * 只能打开当前版本写的文件,旧版本(包括没有header)的文件打开时抛出IllegalArgumentException,需要重建,见PersistFile
  * TODO 用文件锁加起安全
- * TODO 读写锁也要用起来
  * @author seedshao
  *
  */
 public class PersistKVStore
 {
 	Logger log = Logger.getLogger("kvstore");
-	
-    protected ReentrantReadWriteLock locker = new ReentrantReadWriteLock();
-//    protected  ReentrantReadWriteLock[] locker = new ReentrantReadWriteLock[lsize];
-//    ReentrantReadWriteLock getLocker(int hash)
-//    {
-//        if(hash == Integer.MIN_VALUE)
-//            return locker[17];
-//        hash = hash<0 ? -hash : hash;
-//        return locker[hash % lsize];
-//    }
-
-    protected  final PersistKey PK ;
-    protected  final PersistValue PV;
-
-    protected  final FileChannel pkChannel;
-    protected  final MappedByteBuffer pkBuffer;
-
-    protected final FileChannel pvChannel;
-    protected final MappedByteBuffer pvBuffer;
 
+	/**
+	 * 持久化策略
+	 * OS : 不主动刷盘,由操作系统的page cache决定何时落盘
+	 * PERIODIC : 后台线程定期刷盘
+	 * GROUP_COMMIT : 写操作返回前等待刷盘,并发的写共用一次刷盘
+	 */
+	public enum Durability { OS, PERIODIC, GROUP_COMMIT }
+
+	/**
+	 * 新建文件的block格式,已有的文件按其header中的版本打开,与此设置无关
+	 * WIDE : 每个block有8byte的meta(nextPointer+len)
+	 * COMPACT : 每个block只有4byte的meta(标志位+30位的nextPointer),len只存在头block的数据区中,
+	 *      后继block省下4byte;要求keyBytes>8,value block的有效字节数>4,每个文件最多2^30-1个block
+	 */
+	public enum Format { WIDE, COMPACT }
+
+	/**
+	 * 空间满时的策略
+	 * NONE : 写失败
+	 * CLOCK : 按CLOCK(近似LRU)淘汰分片中的其它key,直到放得下;
+	 *      每个key一个引用位,get/put访问时置1,扫描时为1的清0跳过,为0的淘汰
+	 */
+	public enum Eviction { NONE, CLOCK }
+
+	/**
+	 * merge()的合并函数,在key所在分片的写锁下执行,应当很快且不能再调用store
+	 */
+	public interface MergeFunction
+	{
+		/**
+		 * @param k
+		 * @param old : 旧value,没有此key时为null
+		 * @param operand : merge()传入的参数
+		 * @return 新value;null表示删除此key,返回old本身表示不修改
+		 */
+		byte[] merge(byte[] k, byte[] old, byte[] operand);
+	}
+
+	/**
+	 * hash目录冲突链的统计,链长按key个数计
+	 */
+	public static class ChainStats
+	{
+		public long buckets;	// bucket总数
+		public long used;		// 非空的bucket数
+		public long keys;		// key数
+		public int maxChain;	// 最长的链
+
+		/**
+		 * 非空bucket上的平均链长
+		 */
+		public double avgChain()
+		{
+			return used == 0 ? 0 : (double)keys / used;
+		}
+
+		public String toString()
+		{
+			return "buckets="+buckets+",used="+used+",keys="+keys+",maxChain="+maxChain+",avgChain="+String.format("%.2f", avgChain());
+		}
+	}
+
+	/*
+	 * 分片,个数为2的幂
+	 */
+    protected final PersistSegment[] segments;
+
+    private volatile PersistFlusher flusher;
+
+    /**
+     * 单分片的store,文件为fileName.idx/fileName.dat
+     * @param path
+     * @param fileName
+     * @param keyBytes : 每个key block的有效字节数
+     * @param valueBytes : 每个value block的有效字节数
+     * @param count : idx/dat文件各自的block数
+     * @throws IOException
+     */
     public PersistKVStore(String path, String fileName, int keyBytes, int valueBytes, int count) throws IOException
     {
-        RandomAccessFile raf;
-        FileChannel fch ;
-        MappedByteBuffer mbb ;
+        this(path, fileName, keyBytes, valueBytes, count, 1);
+    }
+
+    /**
+     * 多分片的store,文件为fileName_i.idx/fileName_i.dat,打开时必须使用相同的分片数
+     * @param path
+     * @param fileName
+     * @param keyBytes : 每个key block的有效字节数
+     * @param valueBytes : 每个value block的有效字节数
+     * @param count : idx/dat文件各自的总block数,平均分到各分片
+     * @param shards : 分片数,必须为2的幂
+     * @throws IOException
+     */
+    public PersistKVStore(String path, String fileName, int keyBytes, int valueBytes, int count, int shards) throws IOException
+    {
+        this(path, fileName, keyBytes, new int[]{ valueBytes }, count, shards);
+    }
+
+    /**
+     * value按长度分为几个size class的store,每个class有自己的dat文件(fileName.dat,fileName.1.dat...),
+     * value放在block不小于它的最小class中,大value的链短,小value浪费的空间也少;
+     * 打开时必须使用相同的分片数及class
+     * @param path
+     * @param fileName
+     * @param keyBytes : 每个key block的有效字节数
+     * @param valueBytes : 各class的value block的有效字节数,从小到大,最多PersistValue.MAX_CLASSES个
+     * @param count : idx文件的总block数,平均分到各分片;各class的dat文件与最小class的count个block字节数相同
+     * @param shards : 分片数,必须为2的幂
+     * @throws IOException
+     */
+    public PersistKVStore(String path, String fileName, int keyBytes, int[] valueBytes, int count, int shards) throws IOException
+    {
+        this(path, fileName, keyBytes, valueBytes, count, shards, Format.WIDE);
+    }
+
+    /**
+     * 指定新建文件的block格式的store,其它同上
+     * @param path
+     * @param fileName
+     * @param keyBytes
+     * @param valueBytes
+     * @param count
+     * @param shards
+     * @param format : 新建文件的格式,已有文件按其中记录的格式打开
+     * @throws IOException
+     */
+    public PersistKVStore(final String path, final String fileName, final int keyBytes, final int[] valueBytes, int count, final int shards,
+            Format format) throws IOException
+    {
+        this(path, fileName, keyBytes, valueBytes, count, shards, format, PersistFile.MAX_REGION_BYTES);
+    }
+
+    /**
+     * 同上,可以指定每个region映射的最大字节数(如测试时调小以覆盖多region的情况),文件布局与之无关
+     * @param regionBytes
+     */
+    PersistKVStore(final String path, final String fileName, final int keyBytes, final int[] valueBytes, int count, final int shards,
+            Format format, final int regionBytes) throws IOException
+    {
+        if(shards <= 0 || shards > (1 << 16) || (shards & (shards - 1)) != 0)
+            throw new IllegalArgumentException("PersistKVStore():shards="+shards+" is not power of 2");
+        PersistValue.checkClasses(valueBytes);
+        final int segCount = (count + shards - 1) / shards;
+        final boolean compact = format == Format.COMPACT;
+        segments = new PersistSegment[shards];
+        // 各分片同时打开
+        List<ForkJoinTask<PersistSegment>> tasks = new ArrayList<ForkJoinTask<PersistSegment>>(shards);
+        for(int i=0;i<shards;i++)
+        {
+            final int no = i;
+            tasks.add(ForkJoinPool.commonPool().submit(new Callable<PersistSegment>() {
+                public PersistSegment call() throws IOException
+                {
+                    return new PersistSegment(path, segmentName(fileName, no, shards), keyBytes, valueBytes, segCount,
+                            PersistFile.encodeShard(no, shards), compact, regionBytes);
+                }
+            }));
+        }
+        for(int i=0;i<shards;i++)
+            segments[i] = PersistSegment.join(tasks.get(i), segmentName(fileName, i, shards));
+        flusher = new PersistFlusher(segments, Durability.OS, 0);
+    }
+
+    private static String segmentName(String fileName, int no, int shards)
+    {
+        return shards == 1 ? fileName : fileName+"_"+no;
+    }
+
+    /**
+     * 由hash选分片,取bucket最多用到的低28位之上的几位,与bucket错开
+     * (分片多于16个时会与高32位的指纹有几位重叠,同一分片内指纹区分度略低)
+     * @param h
+     * @return
+     */
+    PersistSegment segmentFor(long h)
+    {
+        return segments[segmentIndex(h)];
+    }
+
+    private int segmentIndex(long h)
+    {
+        return (int)(h >>> 28) & (segments.length - 1);
+    }
+
+    /*
+     * 按分片对下标0..n-1分组(计数排序)写入idx,
+     * 返回各分片的起始位置,分片i的下标为idx[start[i], start[i+1])
+     */
+    private int[] groupBySegment(long[] hs, int[] idx)
+    {
+        int[] start = new int[segments.length + 1];
+        for(long h : hs)
+            start[segmentIndex(h) + 1] ++;
+        for(int i=0;i<segments.length;i++)
+            start[i + 1] += start[i];
+        int[] pos = Arrays.copyOf(start, segments.length);
+        for(int i=0;i<hs.length;i++)
+            idx[pos[segmentIndex(hs[i])] ++] = i;
+        return start;
+    }
+
+    /**
+     * 写header并标记为正常关闭,下次打开时不需要扫描全部block
+     * close后不能再使用此store
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        flusher.stop();
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.writeLock();
+            try
+            {
+                seg.close();
+            } finally
+            {
+                seg.locker.unlockWrite(stamp);
+            }
+        }
+    }
+
+    /**
+     * 设置持久化策略,应在打开后,开始读写前设置,默认为OS
+     * @param mode
+     * @param intervalMs : PERIODIC的刷盘间隔,其它模式忽略
+     */
+    public void setDurability(Durability mode, long intervalMs)
+    {
+        PersistFlusher old = flusher;
+        flusher = new PersistFlusher(segments, mode, intervalMs);
+        old.stop();
+    }
+
+    /**
+     * 立即刷盘全部分片
+     */
+    public void force()
+    {
+        for(PersistSegment seg : segments)
+            seg.force();
+    }
 
-        raf = new RandomAccessFile(new File(path+"/"+fileName+".idx"), "rw");
-        fch = raf.getChannel();
-        mbb = fch.map(MapMode.READ_WRITE, 0, count * keyBytes);
+    /**
+     * 开启自动扩容,block用完时不再put失败,而是扩大文件并映射新的region,读不受影响
+     * 注意hash目录的bucket数不会随之增加,扩容得太多时冲突链会变长
+     * @param growFactor : 每次扩容后block数为当前的growFactor倍,<=1时关闭扩容
+     * @param maxFileBytes : 每个idx/dat文件最多扩到的字节数
+     */
+    public void setGrowth(float growFactor, long maxFileBytes)
+    {
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.writeLock();
+            try
+            {
+                seg.setGrowth(growFactor, maxFileBytes);
+            } finally
+            {
+                seg.locker.unlockWrite(stamp);
+            }
+        }
+    }
 
-        PK = new PersistKey(keyBytes, mbb);
-        pkChannel = fch;
-        pkBuffer = mbb;
+    /**
+     * 开启内联,之后put的不超过maxBytes字节的value存放在key之后,
+     * get时只读idx文件,省掉dat中的block及一次跳转;已有的value在下次put时才按新的设置存放
+     * @param maxBytes : 内联value的最大字节数,0关闭内联,最大PersistKey.MAX_INLINE
+     */
+    public void setInline(int maxBytes)
+    {
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.writeLock();
+            try
+            {
+                seg.setInline(maxBytes);
+            } finally
+            {
+                seg.locker.unlockWrite(stamp);
+            }
+        }
+    }
 
-        raf = new RandomAccessFile(new File(path+"/"+fileName+".dat"), "rw");
-        fch = raf.getChannel();
-        mbb = fch.map(MapMode.READ_WRITE, 0, count * keyBytes);
+    /**
+     * 设置空间满时的策略,用作缓存时设为CLOCK,put不再因为空间不够失败;
+     * value本身放不下(淘汰掉所有别的key也不够)时除外,此时不淘汰任何key
+     * 与setGrowth()同时开启时先扩容,扩到上限后才淘汰
+     * 引用位只在内存中,重新打开后都为0
+     * @param policy
+     */
+    public void setEviction(Eviction policy)
+    {
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.writeLock();
+            try
+            {
+                seg.setEviction(policy == Eviction.CLOCK);
+            } finally
+            {
+                seg.locker.unlockWrite(stamp);
+            }
+        }
+    }
 
-        PV = new PersistValue(valueBytes, mbb);
-        pvChannel = fch;
-        pvBuffer = mbb;
+    /**
+     * 当前key的个数
+     * @return
+     */
+    public int size()
+    {
+        int n = 0;
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.readLock();
+            try
+            {
+                n += seg.size();
+            } finally
+            {
+                seg.locker.unlockRead(stamp);
+            }
+        }
+        return n;
+    }
 
+    /**
+     * 遍历各分片的hash目录统计冲突链长度,需走遍所有key的头block,不要频繁调用
+     */
+    public ChainStats chainStats()
+    {
+        ChainStats st = new ChainStats();
+        for(PersistSegment seg : segments)
+        {
+            long stamp = seg.locker.readLock();
+            try
+            {
+                seg.chainStats(st);
+            } finally
+            {
+                seg.locker.unlockRead(stamp);
+            }
+        }
+        return st;
     }
 
     public boolean putIfAbsent(byte[] k, byte[] v)
     {
-        int h = Utils.hash(k);
-        Holder hdHolder = new Holder();
-        int vno = PK.getVNO(h, k, hdHolder);
-        if (vno > 0)	// 存在此key则不能put
-            return false;
-        // 创建一个key
-        Block kb = PK.add(h, k);
-        if(kb == null || kb == Block.NOT_ENOUGH)
-            return false;
-        // 创建数据
-        Block vb = PV.add(0, v);
-        if(vb == null || vb==Block.NOT_ENOUGH)
-            return false;
-        // 回写索引
-        PK.writeVBNO(kb, vb.blockNo);
-        return true;
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        boolean ok;
+        long stamp = seg.locker.writeLock();
+        try
+        {
+            ok = seg.putIfAbsent(h, k, v);
+        } finally
+        {
+            seg.locker.unlockWrite(stamp);
+        }
+        if(ok)
+            flusher.sync();	// 在锁外等刷盘,别的写可以继续进来
+        return ok;
     }
 
     public boolean put(byte[] k, byte[] v)
     {
-        int h = Utils.hash(k);
-        Holder hdHolder = new Holder();
-        int vno = PK.getVNO(h, k, hdHolder);
-        if(vno <= 0)
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        boolean ok;
+        long stamp = seg.locker.writeLock();
+        try
         {
-        	hdHolder.block = PK.add(h, k);
-        }
-        else
+            ok = seg.put(h, k, v);
+        } finally
         {
-//        	System.out.println("conflict");
+            seg.locker.unlockWrite(stamp);
         }
-        if(hdHolder.block == null || hdHolder.block == Block.NOT_ENOUGH)
-            return false;
-        // 创建数据
-        Block vb = PV.add(vno, v);
-        if(vb == null || vb==Block.NOT_ENOUGH)
-            return false;
-        // 回写索引
-        log.info("put(),write vno backto keyblock,k="+Utils.join(k, "|")+",v="+Utils.join(v, "|")+"" +
-        		",vno="+vb.blockNo+",keyblock="+hdHolder.block+",");
-        PK.writeVBNO(hdHolder.block, vb.blockNo);
-        return true;
+        if(ok)
+            flusher.sync();	// 在锁外等刷盘,别的写可以继续进来
+        return ok;
     }
 
+    /**
+     * 先不加锁乐观读,读完后校验期间此分片没有写才返回;
+     * 有写(或读到了正在修改的block而出异常)则加读锁重读
+     * @param k
+     * @return
+     */
     public byte[] get(byte[] k)
     {
-        int h = Utils.hash(k);
-        Holder hdHolder = new Holder();
-        int vno = PK.getVNO(h, k, hdHolder);
-        if(vno <= 0)
-        	return null;
-//        System.out.println("---->find key,k="+Utils.join(k, ",")+",vno="+vno+",keyHd="+hdHolder.block);
-        return PV.read(vno);
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        long stamp = seg.locker.tryOptimisticRead();
+        if(stamp != 0)
+        {
+            try
+            {
+                byte[] v = seg.get(h, k);
+                if(seg.locker.validate(stamp))
+                    return v;
+            } catch (RuntimeException e)
+            {
+                // 读到了一半的修改,下面加锁重读
+            }
+        }
+        stamp = seg.locker.readLock();
+        try
+        {
+            return seg.get(h, k);
+        } finally
+        {
+            seg.locker.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 读value到dst中,不分配新的byte[];dst放不下时不写入,返回值仍为value长度,调用者可据此扩大dst重试
+     * @param k
+     * @param dst : 从其position处写入,成功后position前移value长度
+     * @return value长度,没有此key时返回-1
+     */
+    public int get(byte[] k, ByteBuffer dst)
+    {
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        int pos = dst.position();
+        long stamp = seg.locker.tryOptimisticRead();
+        if(stamp != 0)
+        {
+            try
+            {
+                int n = ValueView.copy(seg.view(h, k), dst);
+                if(seg.locker.validate(stamp))
+                    return n;
+            } catch (RuntimeException e)
+            {
+                // 读到了一半的修改,下面加锁重读
+            }
+            dst.position(pos);
+        }
+        stamp = seg.locker.readLock();
+        try
+        {
+            return ValueView.copy(seg.view(h, k), dst);
+        } finally
+        {
+            seg.locker.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * 取value的只读视图,不拷贝,见ValueView的生命周期说明
+     * @param k
+     * @return 没有此key时返回null
+     */
+    public ValueView getView(byte[] k)
+    {
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        long stamp = seg.locker.tryOptimisticRead();
+        if(stamp != 0)
+        {
+            try
+            {
+                ByteBuffer[] parts = seg.view(h, k);
+                if(seg.locker.validate(stamp))
+                    return parts == null ? null : new ValueView(seg.locker, stamp, parts);
+            } catch (RuntimeException e)
+            {
+                // 读到了一半的修改,下面加锁重读
+            }
+        }
+        stamp = seg.locker.readLock();
+        ByteBuffer[] parts;
+        try
+        {
+            parts = seg.view(h, k);
+        } finally
+        {
+            // 释放读锁,换成从此刻开始的乐观stamp,之后有写则视图失效
+            stamp = seg.locker.tryConvertToOptimisticRead(stamp);
+        }
+        return parts == null ? null : new ValueView(seg.locker, stamp, parts);
+    }
+
+    /**
+     * 批量get,每个分片只做一次乐观读(失败时加一次读锁),
+     * 分片内按冲突链的头block排序后再读,减少随机访问mmap的页
+     * @param keys
+     * @return 与keys一一对应的value,没有的为null
+     */
+    public List<byte[]> multiGet(List<byte[]> keys)
+    {
+        int n = keys.size();
+        long[] hs = new long[n];
+        for(int i=0;i<n;i++)
+            hs[i] = Utils.hash64(keys.get(i));
+        int[] idx = new int[n];
+        int[] start = groupBySegment(hs, idx);
+        byte[][] vs = new byte[n][];
+        for(int s=0;s<segments.length;s++)
+        {
+            int from = start[s], to = start[s + 1];
+            if(from == to)
+                continue;
+            PersistSegment seg = segments[s];
+            long stamp = seg.locker.tryOptimisticRead();
+            if(stamp != 0)
+            {
+                try
+                {
+                    seg.sortByBlock(hs, idx, from, to);
+                    seg.multiGet(hs, keys, idx, from, to, vs);
+                    if(seg.locker.validate(stamp))
+                        continue;
+                } catch (RuntimeException e)
+                {
+                    // 读到了一半的修改,下面加锁重读
+                }
+            }
+            stamp = seg.locker.readLock();
+            try
+            {
+                seg.sortByBlock(hs, idx, from, to);
+                seg.multiGet(hs, keys, idx, from, to, vs);
+            } finally
+            {
+                seg.locker.unlockRead(stamp);
+            }
+        }
+        return Arrays.asList(vs);
+    }
+
+    /**
+     * 批量put,每个分片只加一次写锁,分片内按冲突链的头block排序后再写;
+     * GROUP_COMMIT时整批只等一次刷盘
+     * @param kvs
+     * @return 成功写入的个数
+     */
+    public int multiPut(Map<byte[], byte[]> kvs)
+    {
+        int n = kvs.size();
+        byte[][] ks = new byte[n][];
+        byte[][] vs = new byte[n][];
+        long[] hs = new long[n];
+        int i = 0;
+        for(Map.Entry<byte[], byte[]> e : kvs.entrySet())
+        {
+            ks[i] = e.getKey();
+            vs[i] = e.getValue();
+            hs[i] = Utils.hash64(ks[i]);
+            i ++;
+        }
+        int[] idx = new int[n];
+        int[] start = groupBySegment(hs, idx);
+        int ok = 0;
+        for(int s=0;s<segments.length;s++)
+        {
+            int from = start[s], to = start[s + 1];
+            if(from == to)
+                continue;
+            PersistSegment seg = segments[s];
+            long stamp = seg.locker.writeLock();
+            try
+            {
+                seg.sortByBlock(hs, idx, from, to);
+                ok += seg.multiPut(hs, ks, vs, idx, from, to);
+            } finally
+            {
+                seg.locker.unlockWrite(stamp);
+            }
+        }
+        if(ok > 0)
+            flusher.sync();
+        return ok;
+    }
+
+    /**
+     * 执行一组put/remove,全部成功或全部不执行:
+     * 涉及的分片按下标顺序一次加写锁(避免死锁),先在各分片预留空间(开启淘汰时选出要淘汰的key),都够了才淘汰并执行
+     * @param batch
+     * @return false : 有op不能执行(如key太长)或空间不够,store没有任何修改
+     * @throws IllegalStateException 预留了空间执行时仍然失败,batch只写了一部分
+     */
+    public boolean write(WriteBatch batch)
+    {
+        // 各分片的op,没有op的分片为null
+        List<List<WriteBatch.Op>> segOps = new ArrayList<List<WriteBatch.Op>>(
+                Collections.<List<WriteBatch.Op>>nCopies(segments.length, null));
+        for(WriteBatch.Op op : batch.ops)
+        {
+            int s = segmentIndex(op.h);
+            if(segOps.get(s) == null)
+                segOps.set(s, new ArrayList<WriteBatch.Op>());
+            segOps.get(s).add(op);
+        }
+        long[] stamps = new long[segments.length];
+        try
+        {
+            for(int s=0;s<segments.length;s++)
+            {
+                if(segOps.get(s) != null)
+                    stamps[s] = segments[s].locker.writeLock();
+            }
+            // 各分片要淘汰的key,都预留成功了才淘汰,有一个分片不够时任何分片都不淘汰
+            List<List<P<byte[], Integer>>> victims = new ArrayList<List<P<byte[], Integer>>>(
+                    Collections.<List<P<byte[], Integer>>>nCopies(segments.length, null));
+            for(int s=0;s<segments.length;s++)
+            {
+                if(segOps.get(s) == null)
+                    continue;
+                victims.set(s, segments[s].reserve(segOps.get(s)));
+                if(victims.get(s) == null)
+                    return false;
+            }
+            for(int s=0;s<segments.length;s++)
+            {
+                if(segOps.get(s) != null)
+                {
+                    segments[s].evict(victims.get(s));
+                    segments[s].apply(segOps.get(s));
+                }
+            }
+        } finally
+        {
+            for(int s=0;s<segments.length;s++)
+            {
+                if(stamps[s] != 0)
+                    segments[s].locker.unlockWrite(stamps[s]);
+            }
+        }
+        if(batch.size() > 0)
+            flusher.sync();
+        return true;
     }
 
     public byte[] remove(byte[] k)
     {
-        int h = Utils.hash(k);
-        Holder hdHolder = new Holder();
-        int vno = PK.getVNO(h, k, hdHolder);
-        if(vno <= 0)
-        	return null;
-        if(!PK.remove(h, k))
-        	return null;	
-        byte[] v = PV.remove(vno);
-        if(v == null){
-        	log.error("remove(),k="+Utils.join(k, ",")+",keyHd="+hdHolder.block+",vno="+vno+",key is remove,but value not found");
-        	return null;
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        byte[] v;
+        long stamp = seg.locker.writeLock();
+        try
+        {
+            v = seg.remove(h, k);
+        } finally
+        {
+            seg.locker.unlockWrite(stamp);
         }
+        if(v != null)
+            flusher.sync();	// 在锁外等刷盘,别的写可以继续进来
         return v;
     }
 
+    /**
+     * 读-改-写,在key所在分片的写锁下只查找一次key,由旧value及operand用fn算出新value写回,
+     * 代替get()再put(),既少一次查找,也不会与其它写交错
+     * @param k
+     * @param operand : 传给fn的参数
+     * @param fn : 见MergeFunction
+     * @return 写入(或删除,不变)成功,空间不够等put()失败时false
+     */
+    public boolean merge(byte[] k, byte[] operand, MergeFunction fn)
+    {
+        long h = Utils.hash64(k);
+        PersistSegment seg = segmentFor(h);
+        boolean ok;
+        long stamp = seg.locker.writeLock();
+        try
+        {
+            ok = seg.merge(h, k, operand, fn);
+        } finally
+        {
+            seg.locker.unlockWrite(stamp);
+        }
+        if(ok)
+            flusher.sync();	// 在锁外等刷盘,别的写可以继续进来
+        return ok;
+    }
+
+    /**
+     * 当前value与expected相同时替换为v
+     * @param k
+     * @param expected : null表示要求key不存在
+     * @param v
+     * @return 替换成功
+     */
+    public boolean compareAndSet(byte[] k, final byte[] expected, byte[] v)
+    {
+        final boolean[] matched = new boolean[1];
+        boolean ok = merge(k, v, new MergeFunction() {
+            public byte[] merge(byte[] k, byte[] old, byte[] operand)
+            {
+                matched[0] = expected == null ? old == null : Utils.isEquals(expected, old);
+                return matched[0] ? operand : old;
+            }
+        });
+        return ok && matched[0];
+    }
+
+    /**
+     * 8字节(big-endian long)的计数器加delta,没有此key时从0开始;
+     * 已有的计数器在原来的block中覆盖,不重新申请
+     * @param k
+     * @param delta
+     * @return 加后的值
+     * @throws IllegalArgumentException 已有的value不是8字节
+     * @throws IllegalStateException 新建计数器时空间不够
+     */
+    public long incrementAndGet(byte[] k, final long delta)
+    {
+        final long[] result = new long[1];
+        boolean ok = merge(k, null, new MergeFunction() {
+            public byte[] merge(byte[] k, byte[] old, byte[] operand)
+            {
+                if(old != null && old.length != 8)
+                    throw new IllegalArgumentException("incrementAndGet():value length="+old.length+",not a counter");
+                result[0] = (old == null ? 0 : ByteBuffer.wrap(old).getLong()) + delta;
+                return ByteBuffer.allocate(8).putLong(result[0]).array();
+            }
+        });
+        if(!ok)
+            throw new IllegalStateException("incrementAndGet():k="+Utils.join(k, ",")+",no space");
+        return result[0];
+    }
+
+    /**
+     * 把bytes接到value之后,没有此key时value就是bytes
+     * @return 成功
+     */
+    public boolean append(byte[] k, byte[] bytes)
+    {
+        return merge(k, bytes, new MergeFunction() {
+            public byte[] merge(byte[] k, byte[] old, byte[] operand)
+            {
+                if(old == null)
+                    return operand;
+                byte[] v = Arrays.copyOf(old, old.length + operand.length);
+                System.arraycopy(operand, 0, v, old.length, operand.length);
+                return v;
+            }
+        });
+    }
+
+    /**
+     * 弱一致的key迭代器,迭代期间其它线程的修改可能看得到也可能看不到
+     * @return
+     */
     public Iterator<byte[]> keyIterator()
     {
-        return PK.new FastPKItr();
+        return new KeyItrWrapper();
     }
-    
+
     /*********************下面接口用于测试***********************/
-    
+
     public void print()
     {
     	log.info("----------store_start-----------");
     	// base信息
-    	PK.print();
-    	PV.print();
+    	for(PersistSegment seg : segments)
+    	{
+    		long stamp = seg.locker.readLock();
+    		try
+    		{
+    			seg.print();
+    		} finally
+    		{
+    			seg.locker.unlockRead(stamp);
+    		}
+    	}
+    	log.info("chains:"+chainStats());
     	log.info("----------store_end-----------");
     }
 
-//    /**
-//     * key上的迭代器
-//     * @author seedshao
-//     *
-//     */
-//    class KeyItrWrapper implements Iterator<byte[]>{
-//
-//        FastPKItr pkItr = PK.new FastPKItr();
-//
-//        public boolean hasNext() {
-//        	
-//        }
-//
-//        public byte[] next() {
-//            locker.readLock().lock();
-//            try
-//            {
-//                return pkItr.next();
-//            } finally
-//            {
-//                locker.readLock().unlock();
-//            }
-//        }
-//
-//        public void remove() {
-//            locker.writeLock().lock();
-//            try
-//            {
-//                pkItr.remove();
-//            } finally
-//            {
-//                locker.writeLock().unlock();
-//            }
-//        }
-//    }
+    /**
+     * key上的迭代器,依次迭代各分片,在所在分片的读锁下预取下一个key
+     * @author seedshao
+     *
+     */
+    class KeyItrWrapper implements Iterator<byte[]>{
+
+        private int segNo = -1;
+        private Iterator<byte[]> pkItr;
+        private byte[] nextKey;	// 预取的下一个key
+        private byte[] last;	// 上一次next()返回的key,用于remove()
+
+        /*
+         * 预取下一个key,当前分片迭代完了,则到下一个分片
+         */
+        private boolean advance()
+        {
+            while(nextKey == null)
+            {
+                if(pkItr == null && ++segNo >= segments.length)
+                    return false;
+                PersistSegment seg = segments[segNo];
+                long stamp = seg.locker.readLock();
+                try
+                {
+                    if(pkItr == null)
+                        pkItr = seg.keyIterator();
+                    if(pkItr.hasNext())
+                        nextKey = pkItr.next();
+                    else
+                        pkItr = null;
+                } finally
+                {
+                    seg.locker.unlockRead(stamp);
+                }
+            }
+            return true;
+        }
+
+        public boolean hasNext() {
+            return advance();
+        }
+
+        public byte[] next() {
+            if(!advance())
+                throw new NoSuchElementException();
+            last = nextKey;
+            nextKey = null;
+            return last;
+        }
+
+        public void remove() {
+            if(last == null)
+                throw new IllegalStateException();
+            PersistKVStore.this.remove(last);
+            last = null;
+        }
+    }
 }
@@ -1,13 +1,11 @@
 package seed.store;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.Map.Entry;
-import java.util.TreeMap;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 import org.apache.log4j.Logger;
 
@@ -23,63 +21,91 @@ import seed.utils.Utils;
 public class PersistKey implements PersistConst
 {
     Logger log = Logger.getLogger("kvstore");
+    static final int MAGIC = 0x534B5649;	// "SKVI"
     /*
-     * 空闲池
+     * block文件,管理空闲池及header
      */
-    private final LinkedList<Block> poolFree = new LinkedList<Block>();
-    /*
-     * hash链map,一条链上会有多个key.
+    private final PersistFile file;
+
+    /**
+     * hash目录,存放在文件的reserved区域,每个bucket为4byte的bno,指向此bucket上冲突链的第一个block
      * 新增加key时，采用头插法，放在最前面
-     * 条目为(hash, block)
-     */
-    private final Map<Integer, Block> poolHash = new HashMap<Integer, Block>();
-    /*
-     * 专门用于key的遍历
-     * 条目为(bno, block)
+     * 0表示此bucket上没有key
      */
-    private final ConcurrentHashMap<Integer, Block> poolKey = new ConcurrentHashMap<Integer, Block>(); 
-
+    private static final int LEN_BUCKET = 4;
+    private final int bucketCnt;	// bucket数,必须为2的幂
+    private final int dirBytes;		// 目录占用的字节数
     /**
      * blockBytes = metaBytes + keyBytes
      */
     private final int blockBytes ;    // byteSize
     private final int keyBytes ;		// 有效key的大小
-    private final int maxBlockCnt ;    // 最大block数
-    private final ByteBuffer buffer;    // 存储区
+    private final ByteBuffer dir;    // hash目录区
 
+    /**
+     * 一个key在block链的数据区中依次存放 : [len | vno(4) | fp(4) | key | 内联的value]
+     * len只在紧凑格式时有,为头block的len(key的长度),由PersistFile读写,见PersistFile.lenBytes
+     * fp为hash的高32位(指纹),查找时先比指纹,不同则不用读key的字节
+     * vno的最高位为1时表示value内联在key之后,低位为value的长度,不占用dat文件
+     */
     private static final int LEN_VNO = 4;	// VNO（数据block指针大小，int)
+    private static final int LEN_FP = 4;	// 指纹大小,int
+    private final int keyHead;	// key前面的字节数
 
-    private static final int POS_DATA_START = Block.getMetaSize();
-    private static final int POS_DATA_VBNO = POS_DATA_START;                                    // bno的偏移
-    private static final int POS_DATA_KEY_FIRST = POS_DATA_START + LEN_VNO;    // 第一个key块
-    private static final int POS_DATA_KEY_AFTER = POS_DATA_START ;                      // 后续的key块
+    static final int INLINE = 0x80000000;	// vno中的内联标志
+    static final int MAX_INLINE = 0xFFFF;	// 内联value的最大长度
 
-    void writeVBNO(Block block, int vbno)
+    /**
+     * CLOCK淘汰的引用位,每个block一位(只有key的头block的有意义),放在堆上不写入文件:
+     * 查找时不加锁地置位,不会因为乐观读碰到正在回收的block而写坏文件,读也不会弄脏mmap的页
+     * null表示没有开启淘汰
+     */
+    private volatile AtomicLongArray refBits;
+    private int hand;	// CLOCK的指针,上次扫描到的bno
+
+    private final int dataStart;	// 数据区在block中的偏移
+    private final int posVBNO;	// bno的偏移
+    private final int posFP;	// 指纹的偏移(keyBytes>=keyHead时在头块中)
+
+    void writeVBNO(int block, int vbno)
     {
-        block._writeAt(POS_DATA_VBNO, Utils.encodeInt(vbno), 0);
+        file.writeAt(block, posVBNO, Utils.encodeInt(vbno), 0);
     }
 
     /**
-     * 第一个key block因为包括了VBNO,所以必须从POS_DATA_KEY开始
-     * @param block
-     * @param key
-     * @param offset
-     * @return
+     * vno表示的是内联的value(-1等没有value的值不是)
+     */
+    static boolean isInline(int vno)
+    {
+        return (vno & INLINE) != 0 && (vno & ~INLINE) <= MAX_INLINE;
+    }
+
+    /**
+     * 内联value的长度,不是内联时为0
      */
-    int writeKatFirstBlock(Block block, byte[] key, int offset)
+    static int inlineLen(int vno)
     {
-        return block._writeAt(POS_DATA_KEY_FIRST, key, offset);
+        return isInline(vno) ? vno & ~INLINE : 0;
     }
+
     /**
-     * 接下来的key block,就直接从POS_DATA_VBNO开始
+     * getVNO()找到了key并有value(在dat中或内联)
+     */
+    static boolean hasValue(int vno)
+    {
+        return vno > 0 || isInline(vno);
+    }
+
+    /**
+     * 从block的数据区开始写,写满此block或写完为止
      * @param block
-     * @param key
+     * @param src
      * @param offset
-     * @return
+     * @return 写入的字节数
      */
-    int writeKatAfterBlock(Block block, byte[] key, int offset)
+    int writeData(int block, byte[] src, int offset)
     {
-        return block._writeAt(POS_DATA_KEY_AFTER, key, offset);
+        return file.writeAt(block, dataStart, src, offset);
     }
     /**
      * 读第一个keyBlock中的key数据
@@ -95,56 +121,153 @@ public class PersistKey implements PersistConst
      * @param block
      * @param dst
      */
-    int readAll(Block block, ByteBuffer dst)
+    int readAll(int block, ByteBuffer dst)
     {
-        return block._readAt(POS_DATA_VBNO, dst);
+        return file.readAt(block, dataStart, dst);
     }
 
-    public PersistKey(int kBytes, ByteBuffer buffer)
+    /**
+     * 计算bucketCnt个bucket的目录所需的字节数
+     * @param bucketCnt
+     * @return
+     */
+    static int calcDirBytes(int bucketCnt)
+    {
+        return bucketCnt * LEN_BUCKET;
+    }
+
+    /**
+     * 按block数计算bucket数,取不小于count的2的幂
+     * @param count
+     * @return
+     */
+    static int calcBucketCnt(int count)
     {
-        if(kBytes <= LEN_VNO)
-            throw new IllegalArgumentException("PersistKey():keyBytes="+kBytes+"<LEN_VNO="+LEN_VNO);
-        this.blockBytes = POS_DATA_START + kBytes ;
+        int n = 1;
+        while(n < count && n < (1 << 28))	// 目录最大1G,需放在一个mmap buffer中
+            n <<= 1;
+        return n;
+    }
+
+    /**
+     * 计算idx文件需要的字节数
+     * @param kBytes
+     * @param bucketCnt
+     * @param count : block数
+     * @return
+     */
+    static long calcFileBytes(int kBytes, int bucketCnt, int count, boolean compact)
+    {
+        return PersistFile.calcFileBytes(PersistFile.metaBytesOf(compact) + kBytes, count, calcDirBytes(bucketCnt));
+    }
+
+    /**
+     * @param kBytes
+     * @param bucketCnt
+     * @param count
+     * @param shard
+     * @param fch
+     * @param compact : 新文件是否使用紧凑格式,已有文件按其version
+     * @throws IOException
+     */
+    public PersistKey(int kBytes, int bucketCnt, int count, int shard, FileChannel fch, boolean compact) throws IOException
+    {
+        this(kBytes, bucketCnt, count, shard, fch, compact, PersistFile.MAX_REGION_BYTES);
+    }
+
+    /**
+     * @param regionBytes : 每个region映射的最大字节数,见PersistFile
+     */
+    PersistKey(int kBytes, int bucketCnt, int count, int shard, FileChannel fch, boolean compact, int regionBytes) throws IOException
+    {
+        if(bucketCnt <= 0 || (bucketCnt & (bucketCnt - 1)) != 0)
+            throw new IllegalArgumentException("PersistKey():bucketCnt="+bucketCnt+" is not power of 2");
         this.keyBytes = kBytes;
-        int freeBytes = buffer.capacity() - buffer.position();
-        this.maxBlockCnt = freeBytes / this.blockBytes;
-        this.buffer = buffer;
-        // -- 组装
-        int offset = 0;
-        Block block ;
-        Map<Integer, Block> poolInUse = new HashMap<Integer, Block>();
-        for(int i=1;i<=maxBlockCnt;i++)
-        {
-            offset = (i-1) * this.blockBytes;
-            buffer.position( offset );
-            buffer.limit(offset+ this.blockBytes);
-            block = new Block(i, buffer.slice());
-
-            if(block.getNextBNO() != 0)    // 被占用了
-                poolInUse.put(block.blockNo, block);
-            else
-                poolFree.add(block);
-        }
-        // -- 分析并链起来
-        for(Block _b : poolInUse.values())
-        {
-            block = poolInUse.get(_b.getNextBNO());
-            _b.join(block);
-        }
-        // -- 分析并放入hash
-        for(Block _b : poolInUse.values())
-        {
-        	// 要求必须是链上的第一个block,其实getPreNo==0是充要条件了，后面一定会>0
-        	if(_b.getPreNo() == 0 && _b.getLen() > 0)
-        	{
-                byte[] key = readCurrentKey(_b);
-                poolHash.put(Utils.hash(key), _b);
-        	}
-        }
-        // -- 释放
-        poolInUse.clear();  
-        poolInUse = null;
-        System.gc();    // 哥来触发一下
+        this.bucketCnt = bucketCnt;
+        this.dirBytes = calcDirBytes(bucketCnt);
+        // hash目录已经在文件中了,不需要再重建
+        this.file = new PersistFile(fch, MAGIC, kBytes, compact, count, dirBytes, shard, regionBytes);
+        this.dir = file.reserved();
+        this.blockBytes = file.blockBytes;
+        this.dataStart = file.metaBytes;
+        this.posVBNO = dataStart + file.lenBytes;
+        this.posFP = posVBNO + LEN_VNO;
+        this.keyHead = file.lenBytes + LEN_VNO + LEN_FP;
+        // vno须在头块中;keyBytes<keyHead时指纹跨block,仍然写入但查找时不用它
+        if(kBytes <= file.lenBytes + LEN_VNO)
+            throw new IllegalArgumentException("PersistKey():keyBytes="+kBytes+"<="+(file.lenBytes + LEN_VNO));
+    }
+
+    int size()
+    {
+        return file.getLiveCnt();
+    }
+
+    void close()
+    {
+        file.close();
+    }
+
+    void force()
+    {
+        file.force();
+    }
+
+    long flushDirty()
+    {
+        return file.flushDirty();
+    }
+
+    void setGrowth(float growFactor, long maxFileBytes)
+    {
+        file.setGrowth(growFactor, maxFileBytes);
+    }
+
+    /*
+     * bucket取hash的低位,指纹取高32位,两者互不相关
+     */
+    private int bucketOf(long hash)
+    {
+        return (int)hash & (bucketCnt - 1);
+    }
+
+    private static int fingerprint(long hash)
+    {
+        return (int)(hash >>> 32);
+    }
+
+    /*
+     * 指纹完整地在头块中时才能直接读出比较
+     */
+    private boolean fpInHead()
+    {
+        return keyBytes >= keyHead;
+    }
+
+    /**
+     * 取bucket上冲突链的第一个block
+     * @param bucket
+     * @return
+     */
+    private int readBucket(int bucket)
+    {
+        return file.valid(dir.getInt(bucket * LEN_BUCKET));
+    }
+
+    /**
+     * hash所在冲突链的第一个block,没有则为NILL
+     * @param hash
+     * @return
+     */
+    int headOf(long hash)
+    {
+        return readBucket(bucketOf(hash));
+    }
+
+    private void writeBucket(int bucket, int head)
+    {
+        dir.putInt(bucket * LEN_BUCKET, head);
+        file.markReserved(bucket * LEN_BUCKET);
     }
 
     /**
@@ -159,50 +282,84 @@ public class PersistKey implements PersistConst
         return (short)(len / keyBytes + (len%keyBytes==0?0:1));
     }
 
-    private void recycle(Block b)
+    /**
+     * 存key及vlen字节的内联value需要的block数,太长时<0
+     * @param key
+     * @param vlen : 不内联时为0
+     * @return
+     */
+    int blocksFor(byte[] key, int vlen)
     {
-        if(b == null)
-            return ;
-        b.free();
-        poolFree.offer(b);
+        return calcBlockCount(keyHead + key.length + vlen);
+    }
+
+    /*
+     * head开始的key在block链中占用的字节数
+     */
+    private int streamLen(int head)
+    {
+        return keyHead + file.getLen(head) + inlineLen(file.getIntAt(head, posVBNO));
+    }
+
+    /**
+     * 保证至少有n个空闲block(必要时扩容)
+     */
+    boolean ensureFree(int n)
+    {
+        return file.ensureFree(n);
+    }
+
+    int freeCount()
+    {
+        return file.freeCount();
+    }
+
+    int capacity()
+    {
+        return file.capacity();
     }
-    
+
+    private void recycle(int b)
+    {
+        file.recycle(b);
+    }
+
     /*
      * 仅读取key部分
      */
-    private byte[] readCurrentKey(Block head)
+    private byte[] readCurrentKey(int head)
     {
-    	int klen = head.getLen();
+    	int klen = file.getLen(head);
     	if(klen <= 0)
     		return null;
     	// read into buffer
-    	byte[] src = new byte[klen + LEN_VNO];
+    	byte[] src = new byte[streamLen(head)];
     	ByteBuffer kbb = ByteBuffer.wrap(src);
     	readAhead(head, kbb, null);
     	// read key
     	byte[] key = new byte[klen];
-    	System.arraycopy(src, LEN_VNO, key, 0, klen);
+    	System.arraycopy(src, keyHead, key, 0, klen);
     	return key;
     }
     /*
      * 将vno,key都读取
      */
-    private P<byte[], Integer> readCurrentKV(Block head)
+    P<byte[], Integer> readCurrentKV(int head)
     {
-    	int klen = head.getLen();
+    	int klen = file.getLen(head);
     	if(klen <= 0)
     		return null;
     	// read into buffer
-    	byte[] src = new byte[klen + LEN_VNO];
+    	byte[] src = new byte[streamLen(head)];
     	ByteBuffer kbb = ByteBuffer.wrap(src);
         readAhead(head, kbb, null);
         kbb.position(0);
         // read vno
-        int vno = kbb.getInt(0);
+        int vno = kbb.getInt(posVBNO - dataStart);
         // read key
     	byte[] key = new byte[klen];
-    	System.arraycopy(src, LEN_VNO, key, 0, klen);
-        
+    	System.arraycopy(src, keyHead, key, 0, klen);
+
         return P.join(key, vno);
     }
     /**
@@ -212,12 +369,12 @@ public class PersistKey implements PersistConst
      * @param tailHd 	: 此key的尾节点,注意当key只占用一个block时，tailHd也指向head
      * @return	：返回此冲突链上下一个key, null表明无更多key了
      */
-    private void readAhead(Block head, ByteBuffer kbb, Holder tailHd)
+    private void readAhead(int head, ByteBuffer kbb, Holder tailHd)
     {
-        int klen = head.getLen();
-        Utils.assertTrue(klen>0, "readAhead(),head="+head+",klen="+klen+"<=0");
+        int klen = file.getLen(head);
+        Utils.assertTrue(klen>0, "readAhead(),head="+file.toString(head)+",klen="+klen+"<=0");
         // 到这来一定保证klen>0即当前b为key的头块
-        klen += LEN_VNO;  // 我们要多读4字节(LEN_VNO)出来
+        klen = streamLen(head);  // 还要读出前面的vno,指纹及后面内联的value
         /*
          *  开始读一个key到kbb
          *  1.读到klen长度停止
@@ -226,23 +383,138 @@ public class PersistKey implements PersistConst
          */
         kbb.clear();
         int i=0;
-        Block b = head;
-        for(;i<klen && b!=null;)
+        int b = head;
+        for(;i<klen && b!=Block.NILL;)
         {
-            if(head !=b && b.getLen() > 0)    // 不能是第一个,第一个肯定>0
-                return ;   // 可以直接跳到下一下,因为i<klen && b!=null
+            if(head !=b && file.getLen(b) > 0)    // 不能是第一个,第一个肯定>0
+                return ;   // 可以直接跳到下一下,因为i<klen && b!=NILL
             i += readAll(b, kbb);
             if(tailHd != null)
-            	tailHd.block = b;	// 不为null，则记录
-            b = b.getNext();
+            	tailHd.bno = b;	// 不为null，则记录
+            b = file.next(b);
         }
-        if(b != null && b.getLen()==0)
+        if(b != Block.NILL && file.getLen(b)==0)
         {
-        	log.error("readAhead(),err occur! maybe not recycle rightly,head="+head+",tail="+tailHd+",nextHead="+b);
+        	log.error("readAhead(),err occur! maybe not recycle rightly,head="+file.toString(head)+",tail="+tailHd+",nextHead="+file.toString(b));
         }
         // 继续读下一个key
     }
 
+    /*
+     * 在mmap中直接比较head开始的key与目标key,逐block比较,遇到第一个不同的字节即停,不拷贝也不分配内存
+     * 调用者已保证head的len==key.length
+     * base : 当前block的数据区在[len|vno|fp|key]中的起始偏移
+     */
+    private boolean keyEquals(int head, byte[] key)
+    {
+        int b = head;
+        int base = 0;
+        for(int s=keyHead, end=keyHead+key.length;s<end;)
+        {
+            if(b == Block.NILL || (b != head && file.getLen(b) != 0))	// key还没完就到了链尾或下一个key
+                return false;
+            if(s < base + keyBytes)
+            {
+                int n = Math.min(end - s, base + keyBytes - s);
+                if(!file.equalsAt(b, dataStart + s - base, key, s - keyHead, n))
+                    return false;
+                s += n;
+            }
+            base += keyBytes;
+            b = file.next(b);
+        }
+        return true;
+    }
+
+    /*
+     * 从head开始的[len|vno|fp|key|value]中读偏移s处的dst.remaining()个字节
+     * 乐观读时链可能正在被修改,读到链尾或下一个key时抛出IllegalStateException
+     */
+    private void readStream(int head, int s, ByteBuffer dst)
+    {
+        int b = head;
+        for(int base = 0;dst.hasRemaining();base += keyBytes, b = file.next(b))
+        {
+            if(b == Block.NILL || (b != head && file.getLen(b) != 0))
+                throw new IllegalStateException("readStream(),head="+head+",offset="+s+",chain ends at "+base);
+            if(s < base + keyBytes)
+                s += file.readAt(b, dataStart + s - base, dst);
+        }
+    }
+
+    /*
+     * 把src写到head开始的[len|vno|fp|key|value]中偏移s处,链已经足够长
+     */
+    private void writeStream(int head, int s, byte[] src)
+    {
+        int b = head;
+        for(int base = 0, i = 0;i < src.length;base += keyBytes, b = file.next(b))
+        {
+            if(s < base + keyBytes)
+            {
+                int n = Math.min(src.length - i, base + keyBytes - s);
+                file.writeAt(b, dataStart + s - base, src, i);
+                s += n;
+                i += n;
+            }
+        }
+    }
+
+    /**
+     * 覆盖内联的value,长度必须与原来的相同
+     * @param head : key的头block
+     * @param klen : key的长度
+     * @param v
+     */
+    void writeInline(int head, int klen, byte[] v)
+    {
+        writeStream(head, keyHead + klen, v);
+    }
+
+    /**
+     * 读内联的value
+     * @param head : key的头block
+     * @param klen : key的长度
+     * @param vno : getVNO()的返回值,isInline(vno)
+     */
+    byte[] readInline(int head, int klen, int vno)
+    {
+        byte[] v = new byte[inlineLen(vno)];
+        readStream(head, keyHead + klen, ByteBuffer.wrap(v));
+        return v;
+    }
+
+    /**
+     * 内联value的只读视图,每个block中的一段为一个part
+     */
+    ByteBuffer[] viewInline(int head, int klen, int vno)
+    {
+        int s = keyHead + klen, len = inlineLen(vno);
+        ByteBuffer[] parts = new ByteBuffer[len == 0 ? 0 : (s + len - 1) / keyBytes - s / keyBytes + 1];
+        int b = head;
+        for(int base = 0, i = 0;len > 0;base += keyBytes, b = file.next(b))
+        {
+            if(b == Block.NILL || (b != head && file.getLen(b) != 0))
+                throw new IllegalStateException("viewInline(),head="+head+",vno="+vno+",chain ends at "+base);
+            if(s < base + keyBytes)
+            {
+                int n = Math.min(len, base + keyBytes - s);
+                parts[i++] = file.slice(b, dataStart + s - base, n);
+                s += n;
+                len -= n;
+            }
+        }
+        return parts;
+    }
+
+    /*
+     * 头块中的指纹与fp不同时,此key一定不是要找的key
+     */
+    private boolean fpDiffers(int head, int fp)
+    {
+        return fpInHead() && file.getIntAt(head, posFP) != fp;
+    }
+
     /**
      * 取key的blockNo,如果-1则说明没此key
      * @param hash
@@ -250,202 +522,297 @@ public class PersistKey implements PersistConst
      * @param hdHolder
      * @return
      */
-    int getVNO(int hash, byte[] key, Holder hdHolder)
+    int getVNO(long hash, byte[] key, Holder hdHolder)
     {
-        Block head = poolHash.get(hash);
-        if(head == null)
+        int fp = fingerprint(hash);
+        int head = readBucket(bucketOf(hash));
+        if(head == Block.NILL)
             return -1;
-        
-        ByteBuffer kbb = ByteBuffer.wrap(new byte[LEN_VNO+key.length]); // 读key的buffer -- 只读与目标key相同的那些key
-        for(int klen = 0 ;head != null;) // 下一个block不存在,可以结束了
+
+        for(int klen = 0, steps = 0 ;head != Block.NILL;) // 下一个block不存在,可以结束了
         {
+        	// 链长不会超过block数,超过说明乐观读时碰到了正在修改的链,可能已成环
+        	if(++steps > file.maxBlockCnt)
+        		throw new IllegalStateException("getVNO(),hash="+hash+",chain longer than "+file.maxBlockCnt);
         	// klen : 当前key占用字节数
-            klen = head.getLen();
+            klen = file.getLen(head);
             /*
              * 1.不是key的第一个block,跳过此block
              * 2.如果实际需要字节数与此key的占用数不=,那么肯定不相等了,直接跳过
+             * 3.指纹不同,也肯定不相等,不用再读key的字节
              */
-            if(klen <= 0 || key.length != klen) {
-                head = head.getNext();
+            if(klen <= 0 || key.length != klen || fpDiffers(head, fp)) {
+                head = file.next(head);
                 continue;
             }
-            // head是当前key的第一个结点
-           readAhead(head, kbb, hdHolder);
-           // 与目标key比较
-            if(Utils.isEquals(kbb.array(), LEN_VNO, key))
+            // head是当前key的第一个结点,直接在mmap中与目标key比较
+            if(keyEquals(head, key))
             {
-            	hdHolder.block = head;
-            	return kbb.getInt(0);
+            	setRef(head, true);
+            	hdHolder.bno = head;
+            	return file.getIntAt(head, posVBNO);
             }
-            // 可以继续查下一个head了
-            head = hdHolder.block==null ? null : hdHolder.block.getNext();
+            // 不相等,后面的block(len==0)会在上面跳过,直到下一个key的头
+            head = file.next(head);
         }
         return -1;
     }
 
-    Block add(int hash, byte[] key)
+    int add(long hash, byte[] key)
     {
-        short blockNeed = calcBlockCount(LEN_VNO+key.length); //目标key需要多长block才能放得下
+        return add(hash, key, null);
+    }
+
+    /**
+     * 加入一个key,v不为null时内联在key之后
+     * @param hash
+     * @param key
+     * @param v : 内联的value,null表示value由调用者放到dat中再writeVBNO()
+     * @return key的头block
+     */
+    int add(long hash, byte[] key, byte[] v)
+    {
+        int vlen = v == null ? 0 : v.length;
+        short blockNeed = (short)blocksFor(key, vlen); //目标key需要多长block才能放得下
         if(blockNeed <0)
         {
             log.warn("add(),hash="+hash+",keyLen="+key.length+",key_to_long_than_"+Short.MAX_VALUE);
             return Block.NOT_ENOUGH;
         }
-        if(blockNeed > poolFree.size())
+        if(!file.ensureFree(blockNeed))
         {
             log.warn("add(),hash="+hash+",keyLen="+key.length+",no_space");
             return Block.NOT_ENOUGH;
         }
-        log.info("use start>>>>>");
-        log.info(">>>write "+Utils.join(key, "|"));
-        Block b= null, tail = null, hd = null;
+        boolean debug = log.isDebugEnabled();	// 每次put都会到这里,不开debug时不拼日志
+        if(debug)
+            log.debug(">>>write "+Utils.join(key, "|"));
+        // 组装[len|vno|fp|key|value],不内联时vno由调用者之后写入,len最后由setLen()写入
+        byte[] src = new byte[keyHead + key.length + vlen];
+        ByteBuffer.wrap(src).putInt(posVBNO - dataStart, v == null ? 0 : INLINE | vlen).putInt(posFP - dataStart, fingerprint(hash));
+        System.arraycopy(key, 0, src, keyHead, key.length);
+        if(v != null)
+            System.arraycopy(v, 0, src, keyHead + key.length, vlen);
+        int b= Block.NILL, tail = Block.NILL, hd = Block.NILL;
         int offset = 0;
         // 存入一个key
         for(int i=0;i<blockNeed;i++)
         {
-            b = poolFree.poll();
-            if(b == null)
+            b = file.alloc();	// 已标记使用中
+            if(b == Block.NILL)
             {
                 // TODO 正常情况不会到达这,需要recycle分配出来的block
                 log.error("add(),hash="+hash+",keyLen="+key.length+",no_space,need recycle!");
                 return Block.NOT_ENOUGH;
             }
-            b.markAsUsed();	// 先标记使用中
-            if(tail == null)
+            offset += writeData(b, src, offset);
+            if(tail == Block.NILL)
             {
-                offset += writeKatFirstBlock(b, key, offset);
-                log.info(">>>"+b+",offset:"+offset);
+                if(debug)
+                    log.debug(">>>"+file.toString(b)+",offset:"+offset);
                 hd = b;
             } else
             {
-                offset += writeKatAfterBlock(b, key, offset);
-                log.info(">>>"+b+",offset:"+offset+",pre:"+tail);
-                tail.setNext(b);
+                if(debug)
+                    log.debug(">>>"+file.toString(b)+",offset:"+offset+",pre:"+file.toString(tail));
+                file.setNext(tail, b);
             }
             tail = b;
-            if(offset >= key.length)
+            if(offset >= src.length)
                 break;
         }
         /*
          * tail : 此key占用block链上最后一个block
          * hd : 此key占用block链上第一个block
          */
-        hd.setLen(key.length);
-        b = poolHash.get(hash);
+        file.setLen(hd, key.length);
+        int bucket = bucketOf(hash);
+        b = readBucket(bucket);
         //把自己放最前面
-        if(b != null)
+        if(b != Block.NILL)
         {
-        	tail.setNext(b);
-        	 log.info("add(),insert current key to head,hd="+hd+",tail="+tail+",old="+b);
+        	file.setNext(tail, b);
+        	if(debug)
+        	    log.debug("add(),insert current key to head,hd="+file.toString(hd)+",tail="+file.toString(tail)+",old="+file.toString(b));
         }
-        //放入hash索引表
-        poolHash.put(hash, hd);
-        poolKey.put(hd.blockNo, hd);
-        log.info(">>>>>use end");
+        //放入hash目录
+        writeBucket(bucket, hd);
+        file.addLiveCnt(1);
+        setRef(hd, false);	// 新key要再被访问才置位,不然满的时候每次扫描都要先清一圈;清掉此block上一个key留下的位
         return hd;
     }
 
-    boolean remove(int hash, byte[] key)
+    boolean remove(long hash, byte[] key)
     {
-        Block hd = poolHash.get(hash);
-        if(hd == null)
+        int fp = fingerprint(hash);
+        int bucket = bucketOf(hash);
+        int hd = readBucket(bucket);
+        if(hd == Block.NILL)
             return false;
         /*
          * klen : 当前key占用字节数
          * p : 每个key的整个block链接的前继结点,用于删除
-         * kbb : 读key的buffer,只读与目标key相同的那些key
          * preHd : 指向hd的前继block
          * nextHd : 指向后继key的头block(注意与后继block的区别,后继key是以key为单位的，每个key有多个链起来的block组成)
          */
-        ByteBuffer kbb = ByteBuffer.wrap(new byte[LEN_VNO+key.length]);
-        Block preHd = null, nextHd = null;
-        Holder tailHd = new Holder();	// 用于记录head的前一个节点
-        for(int klen = 0 ;hd != null;) // 下一个block不存在,可以结束了
+        int preHd = Block.NILL, nextHd = Block.NILL;
+        for(int klen = 0 ;hd != Block.NILL;) // 下一个block不存在,可以结束了
         {
-            klen = hd.getLen();
+            klen = file.getLen(hd);
             /*
              * 1.不是key的第一个block,跳过此block
              * 2.如果实际需要字节数与此key的占用数不=,那么肯定不相等了,直接跳过
+             * 3.比较指纹,再在mmap中直接与目标key比较,不相等也一个block一个block地往后找
              */
-            if(klen <= 0 || key.length != klen) {
+            if(klen <= 0 || key.length != klen || fpDiffers(hd, fp) || !keyEquals(hd, key)) {
             	preHd = hd;			// 始终记录前继block，用于删除
-                hd = hd.getNext();	// 此时，只能一个block一个block来搜索到下一个头节点
+                hd = file.next(hd);	// 此时，只能一个block一个block来搜索到下一个头节点
                 continue;
             }
-            // 到之为止，preHd是hd的前继block
-            readAhead(hd, kbb, tailHd);	// 经过此步后，tailHd记录的是head这个key的最后一个节点
-            nextHd = tailHd.block == null ? null : tailHd.block.getNext();
-            log.info("remove(),search,head="+hd+",tail="+tailHd.block+",nextHead="+nextHd);
-            /*
-             * 1.与目标key比较
-             * 2.nextHead已经是当前key的后继key的头节点(注意与后继block的区别,后继key是以key为单位的，每个key有多个链起来的block组成)
-             * 3.head是当前key的第一个结点
-             */
-            if(Utils.isEquals(kbb.array(), LEN_VNO, key))
-            { // 执行删除
-            	// 1.如果此key为hash链上第一个，则更新hash表，否则从链上移除
-                if(preHd == null){  // 当前head的前继节点preHead=null，说明当前key为hash链上第一个key
-                    if(nextHd != null) 
-                    {
-                    	// 将后继key设置到hash查找表中
-                    	if(nextHd.getLen() == 0)
-                		{
-                    		// xxx error occur -- 这个情况下，放进去对于使用是安全的，但可能有block没正确回收
-                		}
-                    	poolHash.put(hash, nextHd);	// hash已经被替换成新的了，后面不能再删除了
-                    } else
-                    {
-                    	poolHash.remove(hash);	// 当前key为hash链上第一个key,时，需要删除hash
-                    }
-                } else {
-                    preHd.setNext(nextHd);   //将后继给链上去
-                    log.info("remove(),link nextHead to preHead,preHead="+preHd+",nextHead="+nextHd);
-                }
-                // 2.从poolKey中删除
-                poolKey.remove(hd.blockNo);
-                // 当前key的尾节点从block链上断开,不然循环起来释放把有效数据给干掉了
-                if(tailHd.block != null)
-                	tailHd.block.free();
-                // 3.释放当前的key,从当前head节点block开始释放此key的block链
-                log.info("remove(),recycle start<<<<<");
-                for(;hd != null;)
-                {
-                	log.info("<<<"+hd);
-                	preHd = hd;	
-                	hd = hd.getNext();
-                	recycle(preHd);	// 必须先记住释放的点，然后指针移一位，不能直接释放b,不然释放当前点，把路径切断了...
-                }
-                log.info("recycle end<<<<<");
-                return true;
+            // 到之为止，preHd是hd的前继block,找到此key的尾节点,nextHd为后继key的头节点
+            int tail = hd;
+            for(int i=calcBlockCount(streamLen(hd));i>1 && file.next(tail)!=Block.NILL;i--)
+            	tail = file.next(tail);
+            nextHd = file.next(tail);
+            boolean debug = log.isDebugEnabled();
+            if(debug)
+                log.debug("remove(),head="+file.toString(hd)+",tail="+file.toString(tail)+",nextHead="+file.toString(nextHd));
+            // 执行删除
+            // 1.如果此key为hash链上第一个，则更新hash目录，否则从链上移除
+            if(preHd == Block.NILL){  // 当前head的前继节点preHead=NILL，说明当前key为hash链上第一个key
+            	// 将后继key设置到hash目录中,没有后继key时bucket置0
+            	writeBucket(bucket, nextHd);
+            } else {
+                file.setNext(preHd, nextHd);   //将后继给链上去
+                if(debug)
+                    log.debug("remove(),link nextHead to preHead,preHead="+file.toString(preHd)+",nextHead="+file.toString(nextHd));
+            }
+            file.addLiveCnt(-1);
+            // 2.当前key的尾节点从block链上断开,不然循环起来释放把有效数据给干掉了
+            file.free(tail);
+            // 3.释放当前的key,从当前head节点block开始释放此key的block链
+            for(;hd != Block.NILL;)
+            {
+            	if(debug)
+            	    log.debug("<<<"+file.toString(hd));
+            	preHd = hd;
+            	hd = file.next(hd);
+            	recycle(preHd);	// 必须先记住释放的点，然后指针移一位，不能直接释放b,不然释放当前点，把路径切断了...
             }
-            // 继续读下一个key
-            preHd = tailHd.block;	// preHd还得是tailHd
-            hd = nextHd;			// hd设置为nextHd
+            return true;
         }
         return false;
     }
-    
+
     /**
-     * 打印当前poolHash中的key
+     * 开启/关闭CLOCK淘汰,开启时引用位都为0
+     */
+    void setClock(boolean on)
+    {
+        refBits = on ? new AtomicLongArray((file.maxBlockCnt >>> 6) + 1) : null;
+    }
+
+    /*
+     * 设置head的引用位,已经是ref时不写
+     */
+    private void setRef(int head, boolean ref)
+    {
+        AtomicLongArray bits = refBits;
+        if(bits == null || (head >>> 6) >= bits.length())
+            return ;
+        int w = head >>> 6;
+        long bit = 1L << (head & 63);
+        for(;;)
+        {
+            long v = bits.get(w);
+            if(((v & bit) != 0) == ref || bits.compareAndSet(w, v, ref ? v | bit : v & ~bit))
+                return ;
+        }
+    }
+
+    /**
+     * 按CLOCK选一个要淘汰的key:从上次的位置起依次扫描key的头block,
+     * 引用位为1的清0再给一次机会,遇到为0的即是;最多扫两圈,在写锁下调用
+     * 不能淘汰的key(正在写的key)由调用者跳过
+     * @return 要淘汰的key的头block,没有可淘汰的key时返回NILL
+     */
+    int victim()
+    {
+        AtomicLongArray bits = refBits;
+        if(bits == null)
+            return Block.NILL;
+        int cnt = file.maxBlockCnt;
+        if((cnt >>> 6) >= bits.length())
+        {	// 扩容过,引用位随之加长
+            AtomicLongArray nb = new AtomicLongArray((cnt >>> 6) + 1);
+            for(int i=0;i<bits.length();i++)
+                nb.set(i, bits.get(i));
+            refBits = bits = nb;
+        }
+        for(int i=0, limit=2 * cnt;i<limit;i++)
+        {
+            hand = hand >= cnt ? 1 : hand + 1;
+            if(file.getLen(hand) <= 0)
+                continue;
+            int w = hand >>> 6;
+            long bit = 1L << (hand & 63);
+            if((bits.get(w) & bit) == 0)
+                return hand;
+            setRef(hand, false);
+        }
+        return Block.NILL;
+    }
+
+    /**
+     * 累加各bucket上冲突链的长度(key个数)到st
+     * @param st
+     */
+    void chainStats(PersistKVStore.ChainStats st)
+    {
+        st.buckets += bucketCnt;
+        for(int i=0;i<bucketCnt;i++)
+        {
+            int n = 0;
+            for(int b = readBucket(i);b != Block.NILL;b = file.next(b))
+            {
+                if(file.getLen(b) > 0)
+                    n ++;
+            }
+            if(n == 0)
+                continue;
+            st.used ++;
+            st.keys += n;
+            if(n > st.maxChain)
+                st.maxChain = n;
+        }
+    }
+
+    /**
+     * 打印当前hash目录中的key
      */
     public void print()
     {
-    	log.info("---------------------PK(poolHashStart)------------------");
-    	for(Entry<Integer, Block> e: new TreeMap<Integer, Block>(poolHash).entrySet())
+    	log.info("---------------------PK(hashDirStart)------------------");
+    	for(int i=0;i<bucketCnt;i++)
     	{
-    		try
+    		for(int b = readBucket(i);b != Block.NILL;b = file.next(b))
     		{
-    			P<byte[], Integer> p = readCurrentKV(e.getValue());
-	    		log.info(e.getKey()+"~"+e.getValue()+"~"+"~vno="+p.b+"~key="+Utils.join(p.a, ","));
-    		}
-    		catch(Exception e1)
-    		{
-    			throw new RuntimeException(e1);
+    			if(file.getLen(b) <= 0)
+    				continue;
+    			try
+    			{
+    				P<byte[], Integer> p = readCurrentKV(b);
+    				log.info(i+"~"+file.toString(b)+"~"+"~vno="+p.b+"~key="+Utils.join(p.a, ","));
+    			}
+    			catch(Exception e1)
+    			{
+    				throw new RuntimeException(e1);
+    			}
     		}
     	}
-    	log.info("---------------------PK(poolHashEnd)------------------");
+    	log.info("---------------------PK(hashDirEnd)------------------");
     }
-    
+
     /**
      * 迭代器,对mmap的block进行全遍历，不建议使用了
      * @author seed2
@@ -455,18 +822,18 @@ public class PersistKey implements PersistConst
     {
         public PKItr()
         {
-            super(buffer, maxBlockCnt, blockBytes);
+            super(file);
         }
 
         @Override
         public boolean hasNext() {
-            return searchNext(false) != null;
+            return searchNext(false) != Block.NILL;
         }
 
         @Override
         public byte[] next() {
-            Block b = searchNext(true);
-            if(b != null && b.getLen() > 0)
+            int b = searchNext(true);
+            if(b != Block.NILL && file.getLen(b) > 0)
                 return readCurrentKey(b);
             return null;
         }
@@ -477,41 +844,77 @@ public class PersistKey implements PersistConst
         }
 
     }
-    
+
     /**
-     * fast版本，因为依靠专门的poolKey来完成遍历，减少全遍历中无谓的查找
+     * fast版本，沿hash目录及冲突链遍历key的头block，减少全遍历中无谓的查找
+     * value不在key文件中,remove()由分片实现removeKey(),连同value一起删除
      * @author seed2
      *
      */
-    class FastPKItr implements Iterator<byte[]>
+    abstract class FastPKItr implements Iterator<byte[]>
     {
-    	private final Iterator<Block> poolKeyItr ;	// 依靠poolKey上的iterator来完成迭代
+    	private int bucket = -1;	// 当前所在的bucket
+    	private int nextHd;		// 下一个要返回的key的头block
+    	private byte[] last;	// 上一次next()返回的key,用于remove()
     	public FastPKItr()
     	{
-    		poolKeyItr = poolKey.values().iterator();
+    		nextHd = seek(Block.NILL);
+    	}
+
+    	/*
+    	 * 从b之后开始找下一个key的头block,当前链找完了则到下一个bucket
+    	 */
+    	private int seek(int b)
+    	{
+    		for(;;)
+    		{
+    			b = b == Block.NILL ? Block.NILL : file.next(b);
+    			for(;b != Block.NILL;b = file.next(b))
+    			{
+    				if(file.getLen(b) > 0)
+    					return b;
+    			}
+    			if(++bucket >= bucketCnt)
+    				return Block.NILL;
+    			b = readBucket(bucket);
+    			if(b != Block.NILL && file.getLen(b) > 0)
+    				return b;
+    		}
     	}
 
 		@Override
 		public boolean hasNext() {
-			return poolKeyItr.hasNext();
+			if(nextHd != Block.NILL && file.getLen(nextHd) <= 0)
+				nextHd = seek(Block.NILL);	// 迭代期间被删除了,从下一个bucket继续
+			return nextHd != Block.NILL;
 		}
 
 		@Override
 		public byte[] next() {
-			Block hd = poolKeyItr.next();
-			if(hd == null)
-				return null;
-			int klen = hd.getLen();
-			if(klen <= 0)
-				poolKeyItr.remove();	// 移除掉吧，反正留着也没用
-			return readCurrentKey(hd);			
+			if(!hasNext())
+				throw new NoSuchElementException();
+			int hd = nextHd;
+			nextHd = seek(hd);
+			last = readCurrentKey(hd);
+			return last;
 		}
 
+		/**
+		 * 删除上一次next()返回的key,已定位的下一个key不受影响
+		 */
 		@Override
 		public void remove() {
-			poolKeyItr.remove();
+			if(last == null)
+				throw new IllegalStateException();
+			removeKey(last);
+			last = null;
 		}
-    	
+
+		/**
+		 * 删除key及其value
+		 */
+		protected abstract void removeKey(byte[] key);
+
     }
 
 }
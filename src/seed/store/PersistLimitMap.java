@@ -1,96 +1,495 @@
 package seed.store;
 
-import java.util.Collection;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
-
-public class PersistLimitMap<K, V> implements Map<K, V>
+/**
+ * <pre>
+ * 以PersistKVStore为存储的Map,key/value由Codec编码成byte[]后存入store,
+ * 容量受store的block数限制,满了之后put抛出IllegalStateException,
+ * 作为缓存使用时可以对store开启淘汰(PersistKVStore.setEviction())
+ *
+ * 编码时使用线程内复用的数组(不超过MAX_CACHED字节时),内置的LONG/INT/STRING及FixedCodec直接写入这些数组,
+ * get时value读到线程内复用的buffer再解码,除了key/value对象本身不再分配byte[]
+ *
+ * 不支持null的key/value;迭代器是弱一致的,见PersistKVStore.keyIterator()
+ * store由调用者打开及关闭
+ * </pre>
+ * @author seedshao
+ *
+ */
+public class PersistLimitMap<K, V> extends AbstractMap<K, V> implements Map<K, V>
 {
+    /**
+     * 对象与byte[]之间的编解码
+     */
+    public interface Codec<T>
+    {
+        /**
+         * v编码后的字节数
+         */
+        int size(T v);
 
-    @Override
-    public V remove(Object key)
+        /**
+         * 把v编码到dst[off, off+size(v))
+         */
+        void encode(T v, byte[] dst, int off);
+
+        /**
+         * 从src[off, off+len)解码
+         */
+        T decode(byte[] src, int off, int len);
+    }
+
+    /**
+     * 定长的记录,如由几个基本类型组成的struct
+     */
+    public static abstract class FixedCodec<T> implements Codec<T>
     {
-        // TODO Auto-generated method stub
-        return null;
+        private final int bytes;
+
+        protected FixedCodec(int bytes)
+        {
+            if(bytes <= 0)
+                throw new IllegalArgumentException("FixedCodec():bytes="+bytes+"<=0");
+            this.bytes = bytes;
+        }
+
+        public final int size(T v)
+        {
+            return bytes;
+        }
+
+        public final T decode(byte[] src, int off, int len)
+        {
+            if(len != bytes)
+                throw new IllegalArgumentException("decode():len="+len+",expect="+bytes);
+            return read(src, off);
+        }
+
+        /**
+         * 从src[off, off+bytes)读出记录
+         */
+        protected abstract T read(byte[] src, int off);
     }
 
-    @Override
-    public void putAll(Map<? extends K, ? extends V> m)
+    /**
+     * 8字节big-endian,与PersistKVStore.incrementAndGet()的计数器格式相同
+     */
+    public static final Codec<Long> LONG = new FixedCodec<Long>(8) {
+        public void encode(Long v, byte[] dst, int off)
+        {
+            long l = v;
+            for(int i=7;i>=0;i--, l >>>= 8)
+                dst[off + i] = (byte)l;
+        }
+
+        protected Long read(byte[] src, int off)
+        {
+            long l = 0;
+            for(int i=0;i<8;i++)
+                l = (l << 8) | (src[off + i] & 0xFF);
+            return l;
+        }
+    };
+
+    /**
+     * 4字节big-endian,与Utils.encodeInt()相同
+     */
+    public static final Codec<Integer> INT = new FixedCodec<Integer>(4) {
+        public void encode(Integer v, byte[] dst, int off)
+        {
+            int n = v;
+            dst[off] = (byte)(n >>> 24);
+            dst[off + 1] = (byte)(n >>> 16);
+            dst[off + 2] = (byte)(n >>> 8);
+            dst[off + 3] = (byte)n;
+        }
+
+        protected Integer read(byte[] src, int off)
+        {
+            return ((src[off] & 0xFF) << 24) | ((src[off + 1] & 0xFF) << 16) | ((src[off + 2] & 0xFF) << 8) | (src[off + 3] & 0xFF);
+        }
+    };
+
+    /**
+     * UTF-8,逐个char直接编码到dst,不经过String.getBytes()的中间数组;
+     * 不成对的surrogate与String.getBytes()一样编码为'?'
+     */
+    public static final Codec<String> STRING = new Codec<String>() {
+        public int size(String v)
+        {
+            int n = 0;
+            for(int i=0;i<v.length();i++)
+            {
+                char c = v.charAt(i);
+                if(c < 0x80)
+                    n += 1;
+                else if(c < 0x800)
+                    n += 2;
+                else if(!Character.isSurrogate(c))
+                    n += 3;
+                else if(isPair(v, i))
+                {
+                    n += 4;
+                    i ++;
+                } else
+                    n += 1;
+            }
+            return n;
+        }
+
+        public void encode(String v, byte[] dst, int off)
+        {
+            for(int i=0;i<v.length();i++)
+            {
+                char c = v.charAt(i);
+                if(c < 0x80)
+                    dst[off++] = (byte)c;
+                else if(c < 0x800)
+                {
+                    dst[off++] = (byte)(0xC0 | (c >> 6));
+                    dst[off++] = (byte)(0x80 | (c & 0x3F));
+                } else if(!Character.isSurrogate(c))
+                {
+                    dst[off++] = (byte)(0xE0 | (c >> 12));
+                    dst[off++] = (byte)(0x80 | ((c >> 6) & 0x3F));
+                    dst[off++] = (byte)(0x80 | (c & 0x3F));
+                } else if(isPair(v, i))
+                {
+                    int cp = Character.toCodePoint(c, v.charAt(++i));
+                    dst[off++] = (byte)(0xF0 | (cp >> 18));
+                    dst[off++] = (byte)(0x80 | ((cp >> 12) & 0x3F));
+                    dst[off++] = (byte)(0x80 | ((cp >> 6) & 0x3F));
+                    dst[off++] = (byte)(0x80 | (cp & 0x3F));
+                } else
+                    dst[off++] = '?';
+            }
+        }
+
+        public String decode(byte[] src, int off, int len)
+        {
+            return new String(src, off, len, StandardCharsets.UTF_8);
+        }
+
+        private boolean isPair(String v, int i)
+        {
+            return Character.isHighSurrogate(v.charAt(i)) && i + 1 < v.length() && Character.isLowSurrogate(v.charAt(i + 1));
+        }
+    };
+
+    /*
+     * 不超过此字节数的key/value编码到线程内复用的数组,更长的每次新分配
+     */
+    static final int MAX_CACHED = 256;
+
+    /*
+     * 线程内复用的数组,store要求byte[]的长度就是key/value的长度,所以每个长度一个;
+     * key与value分开,put时两者可能一样长
+     */
+    private static class Buffers
     {
-        // TODO Auto-generated method stub
+        final byte[][] keys = new byte[MAX_CACHED + 1][];
+        final byte[][] values = new byte[MAX_CACHED + 1][];
+        ByteBuffer out = ByteBuffer.allocate(MAX_CACHED);	// get时读value
+        final ByteBuffer none = ByteBuffer.allocate(0);	// containsKey()时只取长度
 
+        static byte[] of(byte[][] cache, int n)
+        {
+            if(n > MAX_CACHED)
+                return new byte[n];
+            byte[] b = cache[n];
+            if(b == null)
+                b = cache[n] = new byte[n];
+            return b;
+        }
     }
 
-    @Override
-    public void clear()
+    private static final ThreadLocal<Buffers> BUFFERS = new ThreadLocal<Buffers>() {
+        protected Buffers initialValue()
+        {
+            return new Buffers();
+        }
+    };
+
+    private final PersistKVStore store;
+    private final Codec<K> kc;
+    private final Codec<V> vc;
+    private Set<Map.Entry<K, V>> entrySet;
+    private Set<K> keySet;
+
+    /**
+     * @param store : 已打开的store,由调用者关闭
+     * @param kc : key的编解码
+     * @param vc : value的编解码
+     */
+    public PersistLimitMap(PersistKVStore store, Codec<K> kc, Codec<V> vc)
     {
-        // TODO Auto-generated method stub
+        this.store = store;
+        this.kc = kc;
+        this.vc = vc;
+    }
 
+    /*
+     * 编码到线程内复用的数组,在下一次同一线程的调用之前有效
+     */
+    private byte[] encodeKey(Object key)
+    {
+        if(key == null)
+            throw new NullPointerException("key");
+        @SuppressWarnings("unchecked")
+        K k = (K)key;
+        byte[] b = Buffers.of(BUFFERS.get().keys, kc.size(k));
+        kc.encode(k, b, 0);
+        return b;
+    }
+
+    private byte[] encodeValue(V value)
+    {
+        if(value == null)
+            throw new NullPointerException("value");
+        byte[] b = Buffers.of(BUFFERS.get().values, vc.size(value));
+        vc.encode(value, b, 0);
+        return b;
+    }
+
+    private V decodeValue(byte[] v)
+    {
+        return v == null ? null : vc.decode(v, 0, v.length);
+    }
+
+    /*
+     * 读value到线程内复用的buffer再解码,buffer不够时按value长度扩大重读
+     */
+    private V read(byte[] k)
+    {
+        Buffers bufs = BUFFERS.get();
+        for(;;)
+        {
+            ByteBuffer out = bufs.out;
+            out.clear();
+            int n = store.get(k, out);
+            if(n < 0)
+                return null;
+            if(n <= out.capacity())
+                return vc.decode(out.array(), 0, n);
+            bufs.out = ByteBuffer.allocate(n);
+        }
     }
 
     @Override
-    public Set<K> keySet()
+    public V get(Object key)
     {
-        // TODO Auto-generated method stub
-        return null;
+        return read(encodeKey(key));
     }
 
+    /**
+     * 用merge()只查找一次key,同时取出旧value
+     * @throws IllegalStateException 空间不够
+     */
     @Override
-    public Collection<V> values()
+    public V put(K key, V value)
     {
-        // TODO Auto-generated method stub
-        return null;
+        byte[] k = encodeKey(key);
+        final byte[][] old = new byte[1][];
+        if(!store.merge(k, encodeValue(value), new PersistKVStore.MergeFunction() {
+            public byte[] merge(byte[] k, byte[] o, byte[] operand)
+            {
+                old[0] = o;
+                return operand;
+            }
+        }))
+            throw new IllegalStateException("put():key="+key+",no space");
+        return decodeValue(old[0]);
     }
 
     @Override
-    public Set<java.util.Map.Entry<K, V>> entrySet()
+    public V remove(Object key)
     {
-        // TODO Auto-generated method stub
-        return null;
+        return decodeValue(store.remove(encodeKey(key)));
+    }
+
+    /**
+     * 只取value长度,不拷贝value
+     */
+    @Override
+    public boolean containsKey(Object key)
+    {
+        return store.get(encodeKey(key), BUFFERS.get().none) >= 0;
     }
 
     @Override
     public int size()
     {
-        // TODO Auto-generated method stub
-        return 0;
+        return store.size();
     }
 
     @Override
     public boolean isEmpty()
     {
-        // TODO Auto-generated method stub
-        return false;
+        return store.size() == 0;
     }
 
     @Override
-    public boolean containsKey(Object key)
+    public void clear()
     {
-        // TODO Auto-generated method stub
-        return false;
+        for(Iterator<byte[]> it = store.keyIterator();it.hasNext();)
+        {
+            it.next();
+            it.remove();
+        }
     }
 
     @Override
-    public boolean containsValue(Object value)
+    public Set<Map.Entry<K, V>> entrySet()
     {
-        // TODO Auto-generated method stub
-        return false;
+        if(entrySet == null)
+            entrySet = new EntrySet();
+        return entrySet;
     }
 
+    /**
+     * 只解码key,不读value
+     */
     @Override
-    public V get(Object key)
+    public Set<K> keySet()
     {
-        // TODO Auto-generated method stub
-        return null;
+        if(keySet == null)
+            keySet = new KeySet();
+        return keySet;
     }
 
-    @Override
-    public V put(K key, V value)
+    /**
+     * 在store的key迭代器上解码key
+     */
+    class KeySet extends AbstractSet<K>
     {
-        // TODO Auto-generated method stub
-        return null;
+        @Override
+        public Iterator<K> iterator()
+        {
+            final Iterator<byte[]> it = store.keyIterator();
+            return new Iterator<K>() {
+                public boolean hasNext()
+                {
+                    return it.hasNext();
+                }
+
+                public K next()
+                {
+                    byte[] k = it.next();
+                    return kc.decode(k, 0, k.length);
+                }
+
+                public void remove()
+                {
+                    it.remove();
+                }
+            };
+        }
+
+        @Override
+        public boolean contains(Object o)
+        {
+            return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(Object o)
+        {
+            return store.remove(encodeKey(o)) != null;
+        }
+
+        @Override
+        public int size()
+        {
+            return PersistLimitMap.this.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            PersistLimitMap.this.clear();
+        }
     }
 
-}
+    /**
+     * 在store的key迭代器上预取下一个entry并读出value,迭代期间被删掉的key跳过
+     */
+    class EntrySet extends AbstractSet<Map.Entry<K, V>>
+    {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator()
+        {
+            final Iterator<byte[]> it = store.keyIterator();
+            return new Iterator<Map.Entry<K, V>>() {
+                private Map.Entry<K, V> next;
+                private byte[] nextKey;
+                private byte[] last;	// 上一次next()返回的key,用于remove()
 
+                private boolean advance()
+                {
+                    while(next == null && it.hasNext())
+                    {
+                        byte[] k = it.next();
+                        V v = read(k);
+                        if(v == null)
+                            continue;
+                        nextKey = k;
+                        next = new SimpleEntry<K, V>(kc.decode(k, 0, k.length), v) {
+                            private static final long serialVersionUID = 1L;
+
+                            @Override
+                            public V setValue(V value)
+                            {
+                                put(getKey(), value);
+                                return super.setValue(value);
+                            }
+                        };
+                    }
+                    return next != null;
+                }
+
+                public boolean hasNext()
+                {
+                    return advance();
+                }
+
+                public Map.Entry<K, V> next()
+                {
+                    if(!advance())
+                        throw new NoSuchElementException();
+                    Map.Entry<K, V> e = next;
+                    last = nextKey;
+                    next = null;
+                    return e;
+                }
+
+                public void remove()
+                {
+                    if(last == null)
+                        throw new IllegalStateException();
+                    store.remove(last);
+                    last = null;
+                }
+            };
+        }
+
+        @Override
+        public int size()
+        {
+            return PersistLimitMap.this.size();
+        }
+
+        @Override
+        public void clear()
+        {
+            PersistLimitMap.this.clear();
+        }
+    }
+}
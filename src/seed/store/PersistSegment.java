@@ -0,0 +1,678 @@
+package seed.store;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.locks.StampedLock;
+
+import org.apache.log4j.Logger;
+
+import seed.store.Block.Holder;
+import seed.utils.P;
+import seed.utils.Utils;
+
+/**
+ * 一个分片,由独立的idx/dat文件组成,有自己的锁及空闲链
+ * 这里的方法都不加锁,由调用者(PersistKVStore)按读/写加此分片的locker,
+ * get()可以在乐观读(不加锁)下调用,读到的东西要由调用者validate后才能用
+ * @author seedshao
+ *
+ */
+class PersistSegment
+{
+	Logger log = Logger.getLogger("kvstore");
+
+    /*
+     * 每次写锁都会改变stamp,乐观读以此判断读的期间分片是否被修改过
+     */
+    final StampedLock locker = new StampedLock();
+
+    final PersistKey PK ;
+    final PersistValue PV;
+
+    private final FileChannel pkChannel;
+    private final FileChannel[] pvChannels;
+
+    /*
+     * 不超过此字节数的value内联在key之后,不写dat文件,0表示不内联
+     */
+    private int inlineMax;
+
+    /*
+     * 空间不够时按CLOCK淘汰key,而不是写失败
+     */
+    private boolean evict;
+
+    /**
+     * @param path
+     * @param fileName : 不带后缀的文件名
+     * @param keyBytes : 每个key block的有效字节数
+     * @param valueBytes : 各size class的value block的有效字节数,从小到大
+     * @param count : idx文件及最小class的dat文件的block数
+     * @param shard : 分片信息,见PersistFile
+     * @param compact : 新文件是否使用紧凑的block格式
+     * @param regionBytes : 每个region映射的最大字节数,见PersistFile
+     * @throws IOException
+     */
+    PersistSegment(String path, final String fileName, final int keyBytes, final int[] valueBytes, final int count, final int shard,
+            final boolean compact, final int regionBytes) throws IOException
+    {
+        RandomAccessFile raf;
+
+        // idx文件 = header + hash目录 + key block区
+        raf = new RandomAccessFile(new File(path+"/"+fileName+".idx"), "rw");
+        pkChannel = raf.getChannel();
+
+        // dat文件 = header + value block区,每个class一个
+        pvChannels = new FileChannel[valueBytes.length];
+        for(int i=0;i<valueBytes.length;i++)
+        {
+            raf = new RandomAccessFile(new File(path+"/"+datName(fileName, i)), "rw");
+            pvChannels[i] = raf.getChannel();
+        }
+
+        // idx与dat同时打开,未正常关闭时两个文件的恢复扫描可以并行
+        ForkJoinTask<PersistValue> pvTask = ForkJoinPool.commonPool().submit(new Callable<PersistValue>() {
+            public PersistValue call() throws IOException
+            {
+                return new PersistValue(valueBytes, count, shard, pvChannels, compact, regionBytes);
+            }
+        });
+        PK = new PersistKey(keyBytes, PersistKey.calcBucketCnt(count), count, shard, pkChannel, compact, regionBytes);
+        PV = join(pvTask, fileName+".dat");
+    }
+
+    /**
+     * class i的dat文件名,class 0为fileName.dat,其它为fileName.i.dat
+     */
+    static String datName(String fileName, int cls)
+    {
+        return cls == 0 ? fileName+".dat" : fileName+"."+cls+".dat";
+    }
+
+    /**
+     * 等待task完成,将其异常还原为IOException/RuntimeException
+     * @param task
+     * @param name
+     * @return
+     * @throws IOException
+     */
+    static <T> T join(ForkJoinTask<T> task, String name) throws IOException
+    {
+        try
+        {
+            return task.get();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("join():interrupted while opening "+name, e);
+        }
+        catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if(cause instanceof IOException)
+                throw (IOException)cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException)cause;
+            throw new IOException("join():open "+name+" failed", cause);
+        }
+    }
+
+    void close() throws IOException
+    {
+        PK.close();
+        PV.close();
+        pkChannel.close();
+        for(FileChannel ch : pvChannels)
+            ch.close();
+    }
+
+    /**
+     * idx/dat文件刷盘,先刷dat,使idx中指向的value先落盘
+     */
+    void force()
+    {
+        PV.force();
+        PK.force();
+    }
+
+    /**
+     * 只刷idx/dat中写过的范围,返回刷的字节数
+     */
+    long flushDirty()
+    {
+        return PV.flushDirty() + PK.flushDirty();
+    }
+
+    /**
+     * idx/dat文件各自按growFactor扩容,每个文件最大maxFileBytes
+     */
+    void setGrowth(float growFactor, long maxFileBytes)
+    {
+        PK.setGrowth(growFactor, maxFileBytes);
+        PV.setGrowth(growFactor, maxFileBytes);
+    }
+
+    int size()
+    {
+        return PK.size();
+    }
+
+    void setInline(int maxBytes)
+    {
+        inlineMax = Math.min(Math.max(maxBytes, 0), PersistKey.MAX_INLINE);
+    }
+
+    void setEviction(boolean on)
+    {
+        evict = on;
+        PK.setClock(on);
+    }
+
+    private boolean inline(byte[] v)
+    {
+        return v.length <= inlineMax;
+    }
+
+    /*
+     * key已有的value与v一个内联一个不内联,或都内联时,要删掉key重新加入
+     */
+    private boolean rekey(int vno, byte[] v)
+    {
+        return PersistKey.isInline(vno) || inline(v);
+    }
+
+    /*
+     * key(及内联的value)在key文件中占用的block数,不存在时为0
+     */
+    private int keyBlocks(int vno, byte[] k)
+    {
+        return PersistKey.hasValue(vno) ? PK.blocksFor(k, PersistKey.inlineLen(vno)) : 0;
+    }
+
+    /*
+     * 写之前检查key(不存在或要重新加入时)及value的block都够,避免key写进去了value却失败;
+     * 覆盖时旧key/value的block先释放,可以算进来
+     * 开启了淘汰时,空间不够就先选出够用的一组key再淘汰,选不出来时一个都不淘汰
+     * 空value总是内联在key里(inlineMax>=0),不占value的block
+     * @param keep : 正在写的key的头block,不能淘汰,key不存在时为NILL
+     */
+    private boolean canPut(int vno, byte[] k, byte[] v, int keep)
+    {
+        if(v == null)
+            return false;
+        boolean in = inline(v);
+        int kb = PK.blocksFor(k, in ? v.length : 0);
+        if(kb < 0)
+            return false;
+        if(hasRoom(vno, k, v))
+            return true;
+        if(!evict)
+            return false;
+        // 与reserve()一样算出还要的block数及key/value已占用的block数
+        int kNeed = 0, kHeld = 0;
+        int[] vNeed = new int[PV.classCount()], vHeld = new int[PV.classCount()];
+        if(!PersistKey.hasValue(vno) || rekey(vno, v))
+        {
+            kHeld = keyBlocks(vno, k);
+            kNeed = kb - kHeld;
+        }
+        if(!in)
+        {
+            int cls = PV.classFor(v.length);
+            vNeed[cls] = PV.blocksFor(cls, v.length);
+            if(vno > 0 && PV.classOf(vno) == cls)
+            {
+                vHeld[cls] = PV.blocksOf(vno);
+                vNeed[cls] -= vHeld[cls];
+            }
+        }
+        List<P<byte[], Integer>> victims = findRoom(kNeed, vNeed, kHeld, vHeld,
+                keep == Block.NILL ? Collections.<Integer>emptySet() : Collections.singleton(keep));
+        if(victims == null)
+            return false;
+        evict(victims);
+        return true;
+    }
+
+    private boolean hasRoom(int vno, byte[] k, byte[] v)
+    {
+        boolean in = inline(v);
+        if(!PersistKey.hasValue(vno) || rekey(vno, v))
+        {
+            int kb = PK.blocksFor(k, in ? v.length : 0);
+            if(!PK.ensureFree(kb - keyBlocks(vno, k)))
+                return false;
+        }
+        return in || PV.ensureFor(vno, v.length);
+    }
+
+    /*
+     * key文件有kb个、各class有vb[i]个空闲block(必要时扩容)
+     */
+    private boolean hasFree(int kb, int[] vb)
+    {
+        boolean ok = PK.ensureFree(kb);
+        for(int i=0;ok && i<vb.length;i++)
+            ok = PV.ensureFree(i, vb[i]);
+        return ok;
+    }
+
+    /*
+     * 找出要淘汰的key,淘汰后key文件有kb个、各class有vb[i]个空闲block;只选不删,由调用者确定要写了再evict()
+     * 1.空间已经够时返回空的list
+     * 2.淘汰掉所有别的key也放不下时(所需加上要写的key/value已占用的kHeld/vHeld超过了文件的容量)直接返回null,
+     *   不会淘汰了整个分片才发现还是放不下
+     * 3.按CLOCK逐个选,选不出足够的key(没有可淘汰的key)时返回null
+     * @param keep : 不能淘汰的key的头block,即要写的key;kHeld/vHeld只算了它们占用的block,
+     *      淘汰了它们,它们的block就既算作已占用又算作淘汰出来的,写的时候会不够
+     * @return {key,vno}的list,null表示空间不够且不能淘汰出来
+     */
+    private List<P<byte[], Integer>> findRoom(int kb, int[] vb, int kHeld, int[] vHeld, Set<Integer> keep)
+    {
+        if(hasFree(kb, vb))
+            return Collections.emptyList();
+        if(!evict || kb + kHeld > PK.capacity())
+            return null;
+        for(int i=0;i<vb.length;i++)
+        {
+            if(vb[i] + vHeld[i] > PV.capacity(i))
+                return null;
+        }
+        // 上面的ensureFree()已经扩容到不能再扩,差的只能靠淘汰
+        int kShort = kb - PK.freeCount();
+        int[] vShort = new int[vb.length];
+        for(int i=0;i<vb.length;i++)
+            vShort[i] = vb[i] - PV.freeCount(i);
+        List<P<byte[], Integer>> victims = new ArrayList<P<byte[], Integer>>();
+        Set<Integer> picked = new HashSet<Integer>();
+        /*
+         * 选过的及不能淘汰的key引用位已是0,转了一圈后victim()会再次返回它们;
+         * 连续选到的都是这些key(超过它们的个数),说明没有别的可淘汰的key了
+         */
+        for(int again = 0;!enough(kShort, vShort);)
+        {
+            int hd = PK.victim();
+            if(hd == Block.NILL)
+                return null;
+            if(keep.contains(hd) || !picked.add(hd))
+            {
+                if(++again > picked.size() + keep.size())
+                    return null;
+                continue;
+            }
+            again = 0;
+            P<byte[], Integer> kv = PK.readCurrentKV(hd);
+            victims.add(kv);
+            kShort -= keyBlocks(kv.b, kv.a);
+            if(kv.b > 0)
+                vShort[PV.classOf(kv.b)] -= PV.blocksOf(kv.b);
+        }
+        return victims;
+    }
+
+    private static boolean enough(int kShort, int[] vShort)
+    {
+        if(kShort > 0)
+            return false;
+        for(int n : vShort)
+        {
+            if(n > 0)
+                return false;
+        }
+        return true;
+    }
+
+    /*
+     * 淘汰findRoom()选出的key(连同value)
+     */
+    void evict(List<P<byte[], Integer>> victims)
+    {
+        for(P<byte[], Integer> kv : victims)
+        {
+            if(!PK.remove(Utils.hash64(kv.a), kv.a))
+            {
+                log.error("evict(),k="+Utils.join(kv.a, ",")+",key not found in its chain");
+                continue;
+            }
+            if(kv.b > 0)
+                PV.remove2(kv.b);
+        }
+    }
+
+    boolean putIfAbsent(long h, byte[] k, byte[] v)
+    {
+        Holder hdHolder = new Holder();
+        int vno = PK.getVNO(h, k, hdHolder);
+        if (PersistKey.hasValue(vno))	// 存在此key则不能put
+            return false;
+        if(!canPut(vno, k, v, Block.NILL))
+            return false;
+        if(inline(v))
+        {
+            int kb = PK.add(h, k, v);
+            return kb != Block.NILL && kb != Block.NOT_ENOUGH;
+        }
+        // 创建一个key
+        int kb = PK.add(h, k);
+        if(kb == Block.NILL || kb == Block.NOT_ENOUGH)
+            return false;
+        // 创建数据
+        int vb = PV.add(0, v);
+        if(vb == Block.NILL || vb==Block.NOT_ENOUGH)
+            return false;
+        // 回写索引
+        PK.writeVBNO(kb, vb);
+        return true;
+    }
+
+    boolean put(long h, byte[] k, byte[] v)
+    {
+        Holder hdHolder = new Holder();
+        int vno = PK.getVNO(h, k, hdHolder);
+        return putAt(h, k, v, vno, hdHolder);
+    }
+
+    /*
+     * 写入已经getVNO()查找过的key,vno/hdHolder为查找的结果,不用再查一次
+     */
+    private boolean putAt(long h, byte[] k, byte[] v, int vno, Holder hdHolder)
+    {
+        if(!canPut(vno, k, v, PersistKey.hasValue(vno) ? hdHolder.bno : Block.NILL))
+            return false;
+        if(PersistKey.isInline(vno) && inline(v) && PersistKey.inlineLen(vno) == v.length)
+        {
+            // 内联的value长度不变,直接在key的链上覆盖
+            PK.writeInline(hdHolder.bno, k.length, v);
+            return true;
+        }
+        if(PersistKey.hasValue(vno) && rekey(vno, v))
+        {
+            // 旧的key连同内联value或dat中的value一起删掉,再按新value重新加入
+            PK.remove(h, k);
+            if(vno > 0)
+                PV.remove2(vno);
+            vno = -1;
+        }
+        if(inline(v))
+        {
+            int kb = PK.add(h, k, v);
+            return kb != Block.NILL && kb != Block.NOT_ENOUGH;
+        }
+        if(vno <= 0)
+        {
+        	hdHolder.bno = PK.add(h, k);
+        }
+        else
+        {
+//        	System.out.println("conflict");
+        }
+        if(hdHolder.bno == Block.NILL || hdHolder.bno == Block.NOT_ENOUGH)
+            return false;
+        // 创建数据
+        int vb = PV.add(vno, v);
+        if(vb == Block.NILL || vb==Block.NOT_ENOUGH)
+            return false;
+        if(vb == vno)
+            return true;	// 复用了旧的链,不用回写索引
+        // 回写索引
+        if(log.isDebugEnabled())	// 热路径上不开debug时不拼日志
+            log.debug("put(),write vno backto keyblock,k="+Utils.join(k, "|")+",v="+Utils.join(v, "|")+"" +
+            		",vno="+vb+",keyblock="+hdHolder+",");
+        PK.writeVBNO(hdHolder.bno, vb);
+        return true;
+    }
+
+    byte[] get(long h, byte[] k)
+    {
+        return get(h, k, new Holder());
+    }
+
+    private byte[] get(long h, byte[] k, Holder hdHolder)
+    {
+        hdHolder.bno = Block.NILL;
+        int vno = PK.getVNO(h, k, hdHolder);
+        if(PersistKey.isInline(vno))
+            return PK.readInline(hdHolder.bno, k.length, vno);	// 只读key文件,不碰dat
+        if(vno <= 0)
+        	return null;
+//        System.out.println("---->find key,k="+Utils.join(k, ",")+",vno="+vno+",keyHd="+hdHolder.block);
+        return PV.read(vno);
+    }
+
+    byte[] remove(long h, byte[] k)
+    {
+        Holder hdHolder = new Holder();
+        int vno = PK.getVNO(h, k, hdHolder);
+        return removeAt(h, k, vno, hdHolder);
+    }
+
+    /*
+     * 删除已经getVNO()查找过的key
+     */
+    private byte[] removeAt(long h, byte[] k, int vno, Holder hdHolder)
+    {
+        if(PersistKey.isInline(vno))
+        {
+            byte[] v = PK.readInline(hdHolder.bno, k.length, vno);
+            return PK.remove(h, k) ? v : null;
+        }
+        if(vno <= 0)
+        	return null;
+        if(!PK.remove(h, k))
+        	return null;
+        byte[] v = PV.remove(vno);
+        if(v == null){
+        	log.error("remove(),k="+Utils.join(k, ",")+",keyHd="+hdHolder+",vno="+vno+",key is remove,but value not found");
+        	return null;
+        }
+        return v;
+    }
+
+    /**
+     * 读-改-写,只查找一次key:由旧value(没有时为null)及operand用fn算出新value并写回,
+     * fn返回null时删除key,返回旧value本身时不写
+     * fn在分片的写锁下执行,不能再调用store
+     * @return 写入(或删除,不变)成功,空间不够时false
+     */
+    boolean merge(long h, byte[] k, byte[] operand, PersistKVStore.MergeFunction fn)
+    {
+        Holder hdHolder = new Holder();
+        int vno = PK.getVNO(h, k, hdHolder);
+        byte[] old = null;
+        if(PersistKey.isInline(vno))
+            old = PK.readInline(hdHolder.bno, k.length, vno);
+        else if(vno > 0)
+            old = PV.read(vno);
+        byte[] v = fn.merge(k, old, operand);
+        if(v == old)
+            return true;
+        if(v == null)
+            return removeAt(h, k, vno, hdHolder) != null;
+        return putAt(h, k, v, vno, hdHolder);
+    }
+
+    /**
+     * value的只读视图,没有此key时返回null,见PersistValue.view()
+     */
+    ByteBuffer[] view(long h, byte[] k)
+    {
+        Holder hdHolder = new Holder();
+        int vno = PK.getVNO(h, k, hdHolder);
+        if(PersistKey.isInline(vno))
+            return PK.viewInline(hdHolder.bno, k.length, vno);
+        if(vno <= 0)
+            return null;
+        return PV.view(vno);
+    }
+
+    /**
+     * 按key所在冲突链的头block排序,使批量操作大致按顺序访问mmap的页
+     * @param hs : 各key的hash
+     * @param idx : 要排序的key下标,[from, to)原地排序
+     */
+    void sortByBlock(long[] hs, int[] idx, int from, int to)
+    {
+        long[] t = new long[to - from];
+        for(int i=from;i<to;i++)
+            t[i - from] = ((long)PK.headOf(hs[idx[i]]) << 32) | idx[i];
+        Arrays.sort(t);
+        for(int i=from;i<to;i++)
+            idx[i] = (int)t[i - from];
+    }
+
+    /**
+     * 批量读idx[from, to)这些key,结果放到vs的对应下标
+     */
+    void multiGet(long[] hs, List<byte[]> keys, int[] idx, int from, int to, byte[][] vs)
+    {
+        Holder hdHolder = new Holder();
+        for(int i=from;i<to;i++)
+            vs[idx[i]] = get(hs[idx[i]], keys.get(idx[i]), hdHolder);
+    }
+
+    /**
+     * 批量写idx[from, to)这些key,返回成功的个数
+     */
+    int multiPut(long[] hs, byte[][] ks, byte[][] vs, int[] idx, int from, int to)
+    {
+        int n = 0;
+        for(int i=from;i<to;i++)
+        {
+            if(put(hs[idx[i]], ks[idx[i]], vs[idx[i]]))
+                n ++;
+        }
+        return n;
+    }
+
+    /**
+     * 按顺序模拟此分片上的ops,算出空闲key/value block数的峰值并预留(必要时扩容),
+     * 执行中删除/覆盖释放的block可以被后面的op使用;
+     * 开启了淘汰时只选出要淘汰的key,所有分片都预留成功后才由调用者evict(),再apply()
+     * @param ops
+     * @return 要淘汰的key(见findRoom());有不能执行的op(value为空,key太长)或空间不够时返回null,此时什么都没有写
+     */
+    List<P<byte[], Integer>> reserve(List<WriteBatch.Op> ops)
+    {
+        // key -> {是否存在, value的block数, key(含内联value)的block数, value的class},只记录batch中出现过的key
+        Map<ByteBuffer, int[]> state = new HashMap<ByteBuffer, int[]>();
+        Holder hdHolder = new Holder();
+        int kNeed = 0, kPeak = 0, kHeld = 0;
+        int[] vNeed = new int[PV.classCount()], vPeak = new int[PV.classCount()];	// 各class分别计算
+        int[] vHeld = new int[PV.classCount()];	// batch中的key原来占用的block,全部淘汰别的key时也还在
+        Set<Integer> keep = new HashSet<Integer>();	// batch中已存在的key的头block,不能被选去淘汰
+        for(WriteBatch.Op op : ops)
+        {
+            if(PK.blocksFor(op.k, 0) < 0)
+                return null;
+            ByteBuffer key = ByteBuffer.wrap(op.k);
+            int[] st = state.get(key);
+            if(st == null)
+            {
+                int vno = PK.getVNO(op.h, op.k, hdHolder);
+                int vb = PV.blocksOf(vno);
+                st = new int[]{ PersistKey.hasValue(vno) ? 1 : 0, vb, keyBlocks(vno, op.k), vb > 0 ? PV.classOf(vno) : 0 };
+                state.put(key, st);
+                kHeld += st[2];
+                vHeld[st[3]] += st[1];
+                if(st[0] == 1)
+                    keep.add(hdHolder.bno);
+            }
+            if(op.v == null)
+            {	// remove
+                if(st[0] == 1)
+                {
+                    kNeed -= st[2];
+                    vNeed[st[3]] -= st[1];
+                    st[0] = 0;
+                    st[1] = 0;
+                    st[2] = 0;
+                }
+                continue;
+            }
+            boolean in = inline(op.v);
+            int kb = PK.blocksFor(op.k, in ? op.v.length : 0);
+            if(kb < 0)
+                return null;
+            int cls = PV.classFor(op.v.length);
+            int vb = in ? 0 : PV.blocksFor(cls, op.v.length);
+            kNeed += kb - st[2];	// 先释放旧key(连同内联value)再申请
+            vNeed[st[3]] -= st[1];	// 先释放旧value再申请
+            vNeed[cls] += vb;
+            st[0] = 1;
+            st[1] = vb;
+            st[2] = kb;
+            st[3] = cls;
+            kPeak = Math.max(kPeak, kNeed);
+            vPeak[cls] = Math.max(vPeak[cls], vNeed[cls]);
+        }
+        // 峰值是按batch中的key由ops自己释放旧block算的,所以它们不能被淘汰
+        return findRoom(kPeak, vPeak, kHeld, vHeld, keep);
+    }
+
+    /**
+     * 执行reserve()过的ops,空间已预留,不应中途失败;
+     * 执行时不再淘汰,否则预留算错了也会淘汰掉(可能是batch自己刚写的)key悄悄地成功
+     * 失败说明预留算错了,前面的op已经写了,不能再当作整个batch没有执行返回false,抛出IllegalStateException
+     * (remove没有此key时返回null,不算失败)
+     */
+    void apply(List<WriteBatch.Op> ops)
+    {
+        boolean on = evict;
+        evict = false;
+        try
+        {
+            for(WriteBatch.Op op : ops)
+            {
+                if(op.v == null)
+                    remove(op.h, op.k);
+                else if(!put(op.h, op.k, op.v))
+                    throw new IllegalStateException("apply(),k="+Utils.join(op.k, ",")+",vlen="+op.v.length+
+                            ",put failed after reserve(),batch partly written");
+            }
+        } finally
+        {
+            evict = on;
+        }
+    }
+
+    /**
+     * 迭代器的remove()连同value一起删除,与其它方法一样由调用者加写锁
+     */
+    Iterator<byte[]> keyIterator()
+    {
+        return PK.new FastPKItr() {
+            protected void removeKey(byte[] key)
+            {
+                PersistSegment.this.remove(Utils.hash64(key), key);
+            }
+        };
+    }
+
+    void chainStats(PersistKVStore.ChainStats st)
+    {
+        PK.chainStats(st);
+    }
+
+    void print()
+    {
+    	PK.print();
+    	PV.print();
+    }
+}
@@ -1,111 +1,297 @@
 package seed.store;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Map;
-import java.util.TreeMap;
-import java.util.Map.Entry;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.nio.channels.FileChannel;
 
 import org.apache.log4j.Logger;
 
 import seed.utils.P;
-import seed.utils.Utils;
 
 
+/**
+ * value存储区,按value长度分为几个size class,每个class一个dat文件,有自己的block大小及空闲链:
+ * value放在block不小于它的最小class中(太大时放在最大的class中,成为一条链),
+ * 大value的链短,小value浪费的空间也不超过一个block
+ * 多于一个class时,vno的高位为class,低CLASS_SHIFT位为class文件中的bno
+ * @author seedshao
+ *
+ */
 public class PersistValue implements PersistConst
 {
     Logger log = Logger.getLogger("kvstore");
-    LinkedList<Block> poolInFree = new LinkedList<Block>();
-    Map<Integer, Block> headInUse = new HashMap<Integer, Block>();
-    private final ReentrantReadWriteLock locker = new ReentrantReadWriteLock();
+    static final int MAGIC = 0x534B5644;	// "SKVD"
+
+    static final int CLASS_SHIFT = 28;
+    static final int MAX_CLASSES = 1 << (31 - CLASS_SHIFT);	// vno为正数,高3位放class
+    static final int BNO_MASK = (1 << CLASS_SHIFT) - 1;
+
+    /*
+     * 各class的block文件,管理空闲池及header
+     */
+    private final PersistFile[] files;
 
     /**
+     * 各class的有效字节数,从小到大
      * blockBytes = metaBytes + valueBytes
+     * 紧凑格式时头block数据区的前lenBytes个字节为len,value从其后开始
      */
-    private final int blockBytes;
-    private final int valueBytes ;
-    private final int maxBlockCnt ;    // 最大block数
-    final ByteBuffer buffer;    // 存储区
+    private final int[] valueBytes ;
 
-    private static final int POS_DATA_START = Block.getMetaSize();
+    /*
+     * value的数据在block中的偏移,头block要跳过len
+     */
+    private static int dataPos(PersistFile file, boolean head)
+    {
+        return head ? file.metaBytes + file.lenBytes : file.metaBytes;
+    }
 
-    int writeV(Block block, byte[] v, int offset)
+    private int writeV(PersistFile file, int block, boolean head, byte[] v, int offset)
     {
-        return block._writeAt(POS_DATA_START, v, offset);
+        return file.writeAt(block, dataPos(file, head), v, offset);
     }
 
-    int readV(Block block, ByteBuffer dst)
+    private int readV(PersistFile file, int block, boolean head, ByteBuffer dst)
     {
-        return block._readAt(POS_DATA_START, dst);
+        return file.readAt(block, dataPos(file, head), dst);
     }
 
-    public PersistValue(int vBytes, ByteBuffer buffer)
+    /**
+     * 计算dat文件需要的字节数
+     * @param vBytes
+     * @param count : block数
+     * @param compact
+     * @return
+     */
+    static long calcFileBytes(int vBytes, int count, boolean compact)
     {
-        this.blockBytes = vBytes + POS_DATA_START;
-        this.valueBytes = vBytes;
-        int freeBytes = buffer.capacity() - buffer.position();
-        this.maxBlockCnt = freeBytes / this.blockBytes;
-        this.buffer = buffer;
-        // -- 组装
-        int offset = 0;
-        Block block ;
-        Map<Integer, Block> poolInUse = new HashMap<Integer, Block>();
-        for(int i=1;i<=maxBlockCnt;i++)
+        return PersistFile.calcFileBytes(vBytes + PersistFile.metaBytesOf(compact), count, 0);
+    }
+
+    /**
+     * @param vBytes : 各class的有效字节数,从小到大
+     * @param count : 最小class的block数,其它class按相同的字节数折算
+     * @param shard
+     * @param fchs : 各class的dat文件
+     * @param compact : 新文件是否使用紧凑格式,已有文件按其version
+     * @throws IOException
+     */
+    public PersistValue(int[] vBytes, int count, int shard, FileChannel[] fchs, boolean compact) throws IOException
+    {
+        this(vBytes, count, shard, fchs, compact, PersistFile.MAX_REGION_BYTES);
+    }
+
+    /**
+     * @param regionBytes : 每个region映射的最大字节数,见PersistFile
+     */
+    PersistValue(int[] vBytes, int count, int shard, FileChannel[] fchs, boolean compact, int regionBytes) throws IOException
+    {
+        checkClasses(vBytes);
+        if(vBytes.length > 1 && count > BNO_MASK)
+            throw new IllegalArgumentException("PersistValue():count="+count+">"+BNO_MASK+" with "+vBytes.length+" classes");
+        this.valueBytes = vBytes.clone();
+        this.files = new PersistFile[vBytes.length];
+        for(int i=0;i<vBytes.length;i++)
         {
-            offset = (i-1) * this.blockBytes;
-            buffer.position( offset );
-            buffer.limit(offset+ this.blockBytes);
-            block = new Block(i, buffer.slice());
+            int cnt = (int)Math.max(1, (long)count * vBytes[0] / vBytes[i]);
+            files[i] = new PersistFile(fchs[i], MAGIC, vBytes[i], compact, cnt, 0, shard, regionBytes);
+        }
+    }
 
-            if(block.getNextBNO() != 0)    // 被占用了
-            {
-                poolInUse.put(block.blockNo, block);
-                if(block.getLen() > 0)  // 说明是head节点
-                    headInUse.put(block.blockNo, block);
-            }
-            else
-            {
-                poolInFree.add(block);
-            }
+    /**
+     * class的个数在1..MAX_CLASSES之间,有效字节数>0且从小到大
+     */
+    static void checkClasses(int[] vBytes)
+    {
+        if(vBytes.length == 0 || vBytes.length > MAX_CLASSES)
+            throw new IllegalArgumentException("checkClasses():classes="+vBytes.length+",must be 1~"+MAX_CLASSES);
+        for(int i=0;i<vBytes.length;i++)
+        {
+            if(vBytes[i] <= 0 || (i > 0 && vBytes[i] <= vBytes[i - 1]))
+                throw new IllegalArgumentException("checkClasses():valueBytes["+i+"]="+vBytes[i]+" must be >0 and ascending");
         }
-        // -- 链起来
-        for(Block _b : poolInUse.values())
+    }
+
+    int classCount()
+    {
+        return files.length;
+    }
+
+    /**
+     * len字节的value放在哪个class
+     */
+    int classFor(int len)
+    {
+        for(int i=0;i<valueBytes.length - 1;i++)
         {
-            block = poolInUse.get(_b.getNextBNO());
-            _b.join(block);
+            if(len <= valueBytes[i])
+                return i;
         }
-        // -- 释放
-        poolInUse.clear();  // 释放
-        poolInUse = null;
-        System.gc();    // 哥来触发一下
+        return valueBytes.length - 1;
+    }
+
+    /**
+     * vno所在的class,只有一个class时vno就是bno,不编码class
+     */
+    int classOf(int vno)
+    {
+        return files.length == 1 ? 0 : vno >>> CLASS_SHIFT;
+    }
+
+    private int bnoOf(int vno)
+    {
+        return files.length == 1 ? vno : vno & BNO_MASK;
+    }
+
+    private int vnoOf(int cls, int b)
+    {
+        return files.length == 1 ? b : (cls << CLASS_SHIFT) | b;
+    }
+
+    /**
+     * 取value的头block(所在class文件中的bno),vblockNo不是头block时返回NILL
+     * @param vblockNo
+     * @return
+     */
+    private int getHead(int vblockNo)
+    {
+        int cls = classOf(vblockNo);
+        if(vblockNo <= 0 || cls >= files.length)
+            return Block.NILL;
+        PersistFile file = files[cls];
+        int b = file.valid(bnoOf(vblockNo));
+        if(b == Block.NILL || file.getLen(b) <= 0)
+            return Block.NILL;
+        return b;
+    }
+
+    void close()
+    {
+        for(PersistFile file : files)
+            file.close();
+    }
+
+    void force()
+    {
+        for(PersistFile file : files)
+            file.force();
+    }
+
+    long flushDirty()
+    {
+        long bytes = 0;
+        for(PersistFile file : files)
+            bytes += file.flushDirty();
+        return bytes;
     }
 
     /**
-     * 计算需要的block数
+     * 各class文件分别扩容;多于一个class时bno只有CLASS_SHIFT位,文件不能超过BNO_MASK个block
+     */
+    void setGrowth(float growFactor, long maxFileBytes)
+    {
+        for(int i=0;i<files.length;i++)
+        {
+            long max = maxFileBytes;
+            if(files.length > 1)
+                max = Math.min(max, PersistFile.calcFileBytes(files[i].blockBytes, BNO_MASK, 0));
+            files[i].setGrowth(growFactor, max);
+        }
+    }
+
+    /**
+     * 计算需要的block数,紧凑格式时len也占头block的数据区
+     * @param cls
      * @param len
      * @return
      */
-    private int calcBlockNeed(int len)
+    private int calcBlockNeed(int cls, int len)
     {
         if(len <=0)
             return 0;
-        return len / valueBytes + (len%valueBytes==0?0:1);
+        int vb = valueBytes[cls];
+        len += files[cls].lenBytes;
+        return len / vb + (len%vb==0?0:1);
+    }
+
+    /**
+     * 在class cls中存len字节的value需要的block数
+     */
+    int blocksFor(int cls, int len)
+    {
+        return calcBlockNeed(cls, len);
+    }
+
+    /**
+     * vno这个value占用的block数(在classOf(vno)中),vno不是value的头block时为0
+     */
+    int blocksOf(int vno)
+    {
+        int b = getHead(vno);
+        return b == Block.NILL ? 0 : calcBlockNeed(classOf(vno), files[classOf(vno)].getLen(b));
+    }
+
+    /**
+     * 从vno的头block起,链上bno连续(下一个block就是bno+1)的block个数,测试用于检查add是否分到了连续的run
+     */
+    int runOf(int vno)
+    {
+        int b = getHead(vno);
+        if(b == Block.NILL)
+            return 0;
+        PersistFile file = files[classOf(vno)];
+        int n = 1;
+        for(int i=blocksOf(vno);n < i && file.next(b) == b + 1;n++)
+            b++;
+        return n;
+    }
+
+    /**
+     * 保证class cls至少有n个空闲block(必要时扩容)
+     */
+    boolean ensureFree(int cls, int n)
+    {
+        return files[cls].ensureFree(n);
+    }
+
+    int freeCount(int cls)
+    {
+        return files[cls].freeCount();
+    }
+
+    /**
+     * class cls最多能有的block数(含扩容)
+     */
+    int capacity(int cls)
+    {
+        return files[cls].capacity();
+    }
+
+    /**
+     * 保证用len字节的新value覆盖vno时空间够,旧value在同一class时它的block先释放,可以算进来
+     */
+    boolean ensureFor(int vno, int len)
+    {
+        int cls = classFor(len);
+        int n = calcBlockNeed(cls, len);
+        if(getHead(vno) != Block.NILL && classOf(vno) == cls)
+            n -= blocksOf(vno);
+        return files[cls].ensureFree(n);
     }
 
     /**
      * 查找从b开始的block链上的(最后一个block,及block总个数)
+     * @param file
      * @param b
      * @return <block个数, 链上最后一个block>
      */
-    private P<Integer, Block> findBlockAndCntInChain(Block b)
+    private P<Integer, Integer> findBlockAndCntInChain(PersistFile file, int b)
     {
-        P<Integer, Block> p = P.join(0, null);
-        if(b==null)
+        P<Integer, Integer> p = P.join(0, Block.NILL);
+        if(b==Block.NILL)
             return p;
 //        System.out.println("start_41");
-        for(;b != null;b = b.getNext()) {
+        for(;b != Block.NILL;b = file.next(b)) {
             p.a ++;
             p.b = b;
         }
@@ -124,22 +310,36 @@ public class PersistValue implements PersistConst
 //        return p;
 //    }
 
+    /*
+     * 头block b中value的长度,用来分配内存前先检查范围:
+     * 乐观读时b可能已被回收重用,紧凑格式的len在数据区中,读到的可能是用户数据里的任意int,
+     * 超出此class的文件能存下的最大长度时抛出IllegalStateException,由乐观读的调用者加锁重读,不按它分配内存
+     */
+    private int lenOf(int cls, int b)
+    {
+        PersistFile file = files[cls];
+        int len = file.getLen(b);
+        if(len < 0 || len > (long)file.maxBlockCnt * valueBytes[cls] - file.lenBytes)
+            throw new IllegalStateException("lenOf(),cls="+cls+",head="+b+",len="+len+" out of range,maxBlockCnt="+file.maxBlockCnt);
+        return len;
+    }
+
     byte[] read(int vblockNo)
     {
-     // 计算有几个block连起来的
-        Block b = headInUse.get(vblockNo);
-        P<Integer, Block> p = findBlockAndCntInChain(b);
-        if(p.a == 0)
+        // 不再先遍历整条链计算block数,读到len个字节即停,乐观读时也不会因链成环而停不下来
+        int b = getHead(vblockNo);
+        if(b == Block.NILL)
             return Block.emptyV;
+        PersistFile file = files[classOf(vblockNo)];
 
 //        System.out.println("start read vblockNo="+vblockNo);
-        byte[] v = new byte[b.getLen()];
+        byte[] v = new byte[lenOf(classOf(vblockNo), b)];
         ByteBuffer dst = ByteBuffer.wrap(v);
         int len = 0;
-        for(;b != null; b=b.getNext())
+        for(int head = b;b != Block.NILL; b=file.next(b))
         {
 //            System.out.println(b);
-            len += readV(b, dst);
+            len += readV(file, b, b == head, dst);
             if(len >= v.length)
                 break;
         }
@@ -147,14 +347,40 @@ public class PersistValue implements PersistConst
         return v;
     }
 
-    private void recycle(Block b, boolean isHead)
+    /**
+     * value各block数据区的只读视图,按链的顺序,不拷贝
+     * @param vblockNo
+     * @return vblockNo不是value的头block时返回null
+     */
+    ByteBuffer[] view(int vblockNo)
     {
-        if(b == null)
+        int b = getHead(vblockNo);
+        if(b == Block.NILL)
+            return null;
+        int cls = classOf(vblockNo);
+        PersistFile file = files[cls];
+        int len = lenOf(cls, b);
+        ByteBuffer[] parts = new ByteBuffer[calcBlockNeed(cls, len)];
+        for(int i=0, off=0;i<parts.length;i++)
+        {
+            if(b == Block.NILL)
+                throw new IllegalStateException("view(),vno="+vblockNo+",len="+len+",chain has only "+i+" blocks");
+            int pos = dataPos(file, i == 0);
+            int n = Math.min(file.blockBytes - pos, len - off);
+            parts[i] = file.slice(b, pos, n);
+            off += n;
+            b = file.next(b);
+        }
+        return parts;
+    }
+
+    private void recycle(PersistFile file, int b, boolean isHead)
+    {
+        if(b == Block.NILL)
             return ;
-        b.free();
         if(isHead)
-            headInUse.remove(b.blockNo);
-        poolInFree.offer(b);
+            file.addLiveCnt(-1);
+        file.recycle(b);
     }
 
     /**
@@ -166,8 +392,11 @@ public class PersistValue implements PersistConst
     byte[] _remove(int vblockNo, boolean fetchValue)
     {
         // 计算有几个block连起来的
-        Block b = headInUse.get(vblockNo);
-        P<Integer, Block> p = findBlockAndCntInChain(b);
+        int b = getHead(vblockNo);
+        if(b == Block.NILL)
+            return Block.emptyV;
+        PersistFile file = files[classOf(vblockNo)];
+        P<Integer, Integer> p = findBlockAndCntInChain(file, b);
         if(p.a == 0)
             return Block.emptyV;
 
@@ -177,21 +406,21 @@ public class PersistValue implements PersistConst
         ByteBuffer dst = null;
         if(fetchValue)
         {
-            v = new byte[b.getLen()];
+            v = new byte[file.getLen(b)];
             dst = ByteBuffer.wrap(v);
         }
-        for(Block curr = null;b != null; )
+        for(int curr = Block.NILL;b != Block.NILL; )
         {
         	try
         	{
         		curr = b;
 	            if(dst != null)
-	                readV(curr, dst);
-	            b = b.getNext();
+	                readV(file, curr, isHead, dst);
+	            b = file.next(b);
         	}
         	finally
         	{
-        		recycle(curr, isHead);
+        		recycle(file, curr, isHead);
         		isHead = false;
         	}
         }
@@ -209,115 +438,133 @@ public class PersistValue implements PersistConst
     }
     
     /**
-     * 如果vno>0则先回收旧数据，再申请新block
+     * 旧数据与v在同一class时复用旧的链(见add2),返回的就是vno;
+     * 否则如果vno>0则先回收旧数据，再在按长度选出的class中申请新block
      * @param vno
      * @param v
-     * @return
+     * @return 新的vno
      */
-    Block add(int vno, byte[] v)
+    int add(int vno, byte[] v)
     {
     	if(v == null || v.length == 0)
-            return null;
-        int n = calcBlockNeed(v.length);
+            return Block.NILL;
+        int cls = classFor(v.length);
+        PersistFile file = files[cls];
+        int n = calcBlockNeed(cls, v.length);
+        if(getHead(vno) != Block.NILL && classOf(vno) == cls)
+            return add2(vno, v);	// 旧数据在同一class,直接复用它的链
         if(vno > 0)
-        	remove2(vno);	// 有旧数据就先释放 -- add2不用这一步，再看看
-        if(n > poolInFree.size())
+        	remove2(vno);	// 有旧数据就先释放
+        if(!file.ensureFree(n))
         	return Block.NOT_ENOUGH;
-        // 存入一个key
-        Block b, fb = null, pre=null;
         int offset = 0;
-        for(int i=0;i<n;i++)
+        // 优先申请连续的一段,已经链好,顺序写入
+        int fb = n > 1 ? file.allocRun(n) : Block.NILL;
+        for(int b = fb;fb != Block.NILL && offset < v.length;b++)
+            offset += writeV(file, b, b == fb, v, offset);
+        // 没有连续的一段,逐个申请
+        int b, pre=Block.NILL;
+        for(int i=0;i<n && offset < v.length;i++)
         {
-            b = poolInFree.poll();
-            if(b == null)
+            b = file.alloc();	// 已标记使用中
+            if(b == Block.NILL)
             {
                 // TODO 正常情况不会到达这,需要recycle分配出来的block
                 log.error("add(),vno="+vno+",v="+v.length+",no_space,need recycle!");
                 return Block.NOT_ENOUGH;
             }
-            b.markAsUsed();	// 先标记使用中
-            offset += writeV(b, v, offset);
+            offset += writeV(file, b, fb == Block.NILL, v, offset);
             // -- 处理链接
-            if(fb==null)
+            if(fb==Block.NILL)
             	fb = b;	// 记住第一个block
-            if(pre != null)	// 非第一个block,则挂到前面
-            	pre.setNext(b);
+            if(pre != Block.NILL)	// 非第一个block,则挂到前面
+            	file.setNext(pre, b);
             pre = b;
-            if(offset >= v.length)
-                break;
         }
         //
-        fb.setLen(v.length);
-        headInUse.put(fb.blockNo, fb);
-        return fb;
+        file.setLen(fb, v.length);
+        file.addLiveCnt(1);
+        return vnoOf(cls, fb);
     }
 
     /**
-     * 注意v==null 或v=[]时,是返回失败, 因为这两个情况,不需要申请vblock
-     * @param vbno : vbno<=0时,表示直接用新的块
+     * 覆盖vbno这个value,复用它的block链:多出的block回收,不够时在链尾接上新申请的(优先连续的一段),
+     * 再重写数据及len;vno不变,key中的VBNO不用重写,也不用回收再申请整条链
+     * 调用者保证vbno是v所在class中的value头block
+     * @param vbno
      * @param v
-     * @return
+     * @return vbno,空间不够时NOT_ENOUGH(此时旧value的数据及len不变)
      */
-    Block add2(int vbno, byte[] v)
+    private int add2(int vbno, byte[] v)
     {
-        if(v == null || v.length == 0)
-            return null;
-        int n = calcBlockNeed(v.length);
-        Block firstb = vbno<=0 ? null : headInUse.get(vbno);
-        P<Integer, Block> info = findBlockAndCntInChain(firstb);    // 剩余需要的块数
-        n -= info.a;
-        //
-        if(n > 0)
-        {   // 还需要申请n个块
-            locker.writeLock().lock();
-            try
+        int cls = classOf(vbno);
+        PersistFile file = files[cls];
+        int n = calcBlockNeed(cls, v.length);
+        int firstb = getHead(vbno);
+        // 保留链上前n个block,tail为其中最后一个
+        int tail = firstb, have = 1;
+        for(int next = file.next(tail);have < n && next != Block.NILL;next = file.next(tail))
+        {
+            tail = next;
+            have ++;
+        }
+        if(have < n)
+        {   // 还需要申请n-have个块,接到链尾
+            if(!file.ensureFree(n - have))
+                return Block.NOT_ENOUGH;
+            int run = file.allocRun(n - have);
+            if(run != Block.NILL)
+            {
+                file.setNext(tail, run);
+            } else
             {
-                if(n > poolInFree.size())
-                    return Block.NOT_ENOUGH;
-                Block t;
-                for(;n>0;n--)
+                for(;have < n;have ++)
                 {
-                    t = poolInFree.poll();
-                    if(t == null)
+                    int t = file.alloc();	// 已标记使用中
+                    if(t == Block.NILL)
                         return Block.NOT_ENOUGH;
-                    t.markAsUsed();	// 先标记使用中
-                    if(firstb == null)   {// 完全是新申请的,作为第一个块
-                        info.b = firstb = t;
-                    } else {
-                        info.b.setNext(t);
-                        info.b = t;   // 让info.b始终移到当前链尾
-                    }
+                    file.setNext(tail, t);
+                    tail = t;
                 }
-            } finally {
-               locker.writeLock().unlock();
+            }
+        } else
+        {   // 回收第n个之后多出的block
+            int rest = file.next(tail);
+            if(rest != Block.NILL)
+                file.setNext(tail, Block.NILL);
+            for(int b;rest != Block.NILL;)
+            {
+                b = rest;
+                rest = file.next(b);
+                file.recycle(b);
             }
         }
-        // --到这则p.b肯定不会为null
-        Utils.assertTrue(info.b != null, "add:vbno="+vbno+",info="+info);
         // 写入新的数据
         int offset = 0;
-        for(Block b = firstb;b != null ;b=b.getNext())
-        {
-            // 记下数据
-            offset += writeV(b, v, offset);
-        }
-        firstb.setLen(v.length);
-        headInUse.put(firstb.blockNo, firstb);
-        return firstb;
+        for(int b = firstb;offset < v.length;b = file.next(b))
+            offset += writeV(file, b, b == firstb, v, offset);
+        file.setLen(firstb, v.length);
+        return vbno;
     }
     
     public void print()
     {
     	log.info("---------------------PV(headInUseStart)------------------");
-    	for(Entry<Integer, Block> e: new TreeMap<Integer, Block>(headInUse).entrySet())
+    	for(int cls=0;cls<files.length;cls++)
     	{
-    		Block b = e.getValue();
-    		for(;b != null;)
+    		PersistFile file = files[cls];
+    		for(int i=1;i<=file.maxBlockCnt;i++)
     		{
-    			log.info(b.toString());
-    			b = b.getNext();
+    			int b = getHead(vnoOf(cls, i));
+    			if(b == Block.NILL || !file.isUsed(b))
+    				continue;
+    			for(;b != Block.NILL;)
+    			{
+    				log.info(cls+"~"+file.toString(b));
+    				b = file.next(b);
+    			}
+    			log.info("*******");
     		}
-    		log.info("*******");
     	}
     	log.info("---------------------PV(headInUseEnd)------------------");
     }
@@ -326,7 +573,7 @@ public class PersistValue implements PersistConst
     	
     	 public PVItr()
          {
-             super(buffer, maxBlockCnt, blockBytes);
+             super(files[0]);
          }
 
 		@Override
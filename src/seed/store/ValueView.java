@@ -0,0 +1,98 @@
+package seed.store;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * <pre>
+ * 一个value在mmap中的只读视图,不拷贝,由value链上各block的数据区组成(part)
+ * 生命周期 : 只在所在分片没有被再写过之前有效,
+ *      使用者读完(或拷贝完)后应调用isValid(),返回false则读到的内容可能不一致,需要重新getView()
+ * </pre>
+ * @author seedshao
+ *
+ */
+public class ValueView
+{
+    private final StampedLock locker;
+    private final long stamp;
+    private final ByteBuffer[] parts;
+    private final int length;
+
+    ValueView(StampedLock locker, long stamp, ByteBuffer[] parts)
+    {
+        this.locker = locker;
+        this.stamp = stamp;
+        this.parts = parts;
+        int n = 0;
+        for(ByteBuffer part : parts)
+            n += part.remaining();
+        this.length = n;
+    }
+
+    /**
+     * value的字节数
+     */
+    public int length()
+    {
+        return length;
+    }
+
+    public int partCount()
+    {
+        return parts.length;
+    }
+
+    /**
+     * 第i段的只读buffer,每次返回新的duplicate,position/limit互不影响
+     */
+    public ByteBuffer part(int i)
+    {
+        return parts[i].duplicate();
+    }
+
+    /**
+     * 拷贝到dst,dst放不下时不拷贝
+     * @param dst
+     * @return value的字节数
+     */
+    public int copyTo(ByteBuffer dst)
+    {
+        return copy(parts, dst);
+    }
+
+    public byte[] toArray()
+    {
+        byte[] v = new byte[length];
+        copy(parts, ByteBuffer.wrap(v));
+        return v;
+    }
+
+    /**
+     * 自取得视图以来所在分片没有被写过
+     */
+    public boolean isValid()
+    {
+        return locker.validate(stamp);
+    }
+
+    /**
+     * 把parts依次拷到dst,dst剩余空间不够时不拷贝
+     * @param parts
+     * @param dst
+     * @return value的字节数,parts为null时返回-1
+     */
+    static int copy(ByteBuffer[] parts, ByteBuffer dst)
+    {
+        if(parts == null)
+            return -1;
+        int n = 0;
+        for(ByteBuffer part : parts)
+            n += part.remaining();
+        if(n > dst.remaining())
+            return n;
+        for(ByteBuffer part : parts)
+            dst.put(part.duplicate());
+        return n;
+    }
+}
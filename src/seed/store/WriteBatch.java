@@ -0,0 +1,61 @@
+package seed.store;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import seed.utils.Utils;
+
+/**
+ * 一组put/remove,由PersistKVStore.write()一起执行:
+ * 1.先检查全部op的空间,不够则一个都不执行
+ * 2.涉及的分片一次加锁,按加入的顺序执行
+ * 3.GROUP_COMMIT时整批只等一次刷盘
+ * 注意只保证执行时的全有或全无,进程崩溃时已执行的部分不会回滚
+ * @author seedshao
+ *
+ */
+public class WriteBatch
+{
+    final List<Op> ops = new ArrayList<Op>();
+
+    /*
+     * 一个写操作,v==null表示remove
+     */
+    static class Op
+    {
+        final long h;
+        final byte[] k;
+        final byte[] v;
+
+        Op(byte[] k, byte[] v)
+        {
+            this.h = Utils.hash64(k);
+            this.k = k;
+            this.v = v;
+        }
+    }
+
+    public WriteBatch put(byte[] k, byte[] v)
+    {
+        if(v == null)
+            throw new IllegalArgumentException("put():v is null");
+        ops.add(new Op(k, v));
+        return this;
+    }
+
+    public WriteBatch remove(byte[] k)
+    {
+        ops.add(new Op(k, null));
+        return this;
+    }
+
+    public int size()
+    {
+        return ops.size();
+    }
+
+    public void clear()
+    {
+        ops.clear();
+    }
+}
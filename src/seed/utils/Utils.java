@@ -85,6 +85,46 @@ public class Utils
     {
     	return 1;
     }
+
+    /**
+     * MurmurHash64A,各bit分布均匀,低位可直接取模,高位可作指纹
+     * 每次取8字节(低位在数组低位)
+     * @param v
+     * @return
+     */
+    public static long hash64(byte[] v)
+    {
+        if (v == null)
+            return 0;
+        final long m = 0xc6a4a7935bd1e995L;
+        final int r = 47;
+        int len = v.length;
+        long h = 0x9747b28cL ^ (len * m);
+        int end = len & ~7;
+        for (int i = 0; i < end; i += 8)
+        {
+            long k = (v[i] & 0xffL) | (v[i + 1] & 0xffL) << 8 | (v[i + 2] & 0xffL) << 16 | (v[i + 3] & 0xffL) << 24
+                    | (v[i + 4] & 0xffL) << 32 | (v[i + 5] & 0xffL) << 40 | (v[i + 6] & 0xffL) << 48 | (v[i + 7] & 0xffL) << 56;
+            k *= m;
+            k ^= k >>> r;
+            k *= m;
+            h ^= k;
+            h *= m;
+        }
+        if (end < len)
+        {	// 不足8字节的尾部,同样低位在数组低位
+            for (int i = end; i < len; i++)
+                h ^= (v[i] & 0xffL) << ((i - end) << 3);
+            h *= m;
+        }
+        h ^= h >>> r;
+        h *= m;
+        h ^= h >>> r;
+        return h;
+
+//         for collision test
+//         return collisionHash(v);
+    }
     
     /**
      * 低位在数组高位
@@ -2,12 +2,20 @@ package seed.store;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.PropertyConfigurator;
@@ -49,6 +57,33 @@ public class PersistKVStoreTest
         singleTest();
         collisionTest();
         multiTest();
+        batchTest();
+        writeBatchTest();
+        viewTest();
+        inlineTest();
+        overwriteTest();
+        mergeTest();
+        chainStatsTest();
+        sizeClassTest();
+        compactTest();
+        evictionTest();
+        limitMapTest();
+        itrRemoveTest();
+        versionTest();
+        recoverTest();
+        blockTest();
+        freeListTest();
+        shardTest();
+        optimisticGetTest();
+        regionTest();
+        growthTest();
+        durabilityTest();
+        dirtyTest();
+        keyCompareTest();
+        copyTest();
+        runTest();
+        lenTest();
+        reopenTest();
 //    	
         System.out.println("DONE!!!");
     	store.print();
@@ -168,6 +203,1310 @@ public class PersistKVStoreTest
         }
     }
     
+    // -- 批量put/get,结果与逐个get一致
+    static void batchTest()
+    {
+        Map<byte[], byte[]> kvs = new HashMap<byte[], byte[]>();
+        for (int i = 0; i < 100; i++)
+        {
+            byte[] k = new byte[R.nextInt(10*ksize - 1) + 1];
+            R.nextBytes(k);
+            byte[] v = new byte[R.nextInt(10*vsize - 1) + 1];
+            R.nextBytes(v);
+            if(searchInMap(k))
+                continue;
+            kvs.put(k, v);
+        }
+        if(store.multiPut(kvs) != kvs.size())
+        {
+            System.out.println("--->multiPut failed!");
+            return;
+        }
+        for(Entry<byte[], byte[]> e : kvs.entrySet())
+            putToMap(e.getKey(), e.getValue());
+        List<byte[]> keys = new ArrayList<byte[]>(map.keySet());
+        List<byte[]> vs = store.multiGet(keys);
+        for(int i=0;i<keys.size();i++)
+        {
+            if(!Utils.isEquals(map.get(keys.get(i)), vs.get(i)))
+            {
+                System.out.println("--->multiGet failed!k="+Utils.join(keys.get(i), ","));
+                return;
+            }
+        }
+    }
+
+    // -- WriteBatch全部执行或全部不执行
+    static void writeBatchTest()
+    {
+        byte[] k1 = new byte[] { 1, 2, 3 };
+        byte[] k2 = new byte[] { 4, 5, 6, 7 };
+        byte[] v = new byte[] { 9, 8 };
+        WriteBatch batch = new WriteBatch().put(k1, v).put(k2, v).remove(k1);
+        if(!store.write(batch))
+        {
+            System.out.println("--->writeBatch failed!");
+            return;
+        }
+        putToMap(k2, v);
+        if(store.get(k1) != null)
+            System.out.println("--->writeBatch remove failed!");
+        testGet(k2, v);
+        // key太长(block数超出short)的put不能执行,整个batch都不执行
+        int size = store.size();
+        batch = new WriteBatch().remove(k2).put(new byte[ksize * Short.MAX_VALUE + 1], v);
+        if(store.write(batch) || store.size() != size)
+            System.out.println("--->writeBatch not atomic!");
+        testGet(k2, v);
+    }
+
+    // -- 读到调用者的buffer及只读视图,与get()一致
+    static void viewTest()
+    {
+        byte[] k = new byte[] { 7, 7, 7 };
+        byte[] v = new byte[10*vsize + 1];
+        R.nextBytes(v);
+        if(!store.put(k, v))
+        {	// 共用的store可能被之前的测试写满了
+            System.out.println("--->view put failed!size="+store.size());
+            return;
+        }
+        putToMap(k, v);
+        ByteBuffer dst = ByteBuffer.allocate(v.length);
+        if(store.get(k, dst) != v.length || !Utils.isEquals(v, dst.array()))
+            System.out.println("--->get into buffer failed!");
+        ValueView view = store.getView(k);
+        if(view == null)
+        {
+            System.out.println("--->getView returned null!");
+            return;
+        }
+        if(!Utils.isEquals(v, view.toArray()) || !view.isValid())
+            System.out.println("--->getView failed!");
+        if(!store.put(k, v))
+            System.out.println("--->view put failed!size="+store.size());
+        else if(view.isValid())
+            System.out.println("--->view still valid after put!");
+    }
+
+    // -- 内联小value,与dat中的value互相覆盖
+    static void inlineTest()
+    {
+        store.setInline(16);
+        byte[] k = new byte[] { 9, 9, 9, 9, 9, 9, 9 };
+        byte[] small = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 };
+        byte[] big = new byte[10*vsize + 7];
+        R.nextBytes(big);
+        byte[][] vs = new byte[][] { small, big, small };
+        for(byte[] v : vs)
+        {
+            store.put(k, v);
+            putToMap(k, v);
+            testGet(k, v);
+            ValueView view = store.getView(k);
+            if(view == null || !Utils.isEquals(v, view.toArray()))
+                System.out.println("--->inline getView failed!");
+        }
+        if(!Utils.isEquals(small, store.remove(k)) || store.get(k) != null)
+            System.out.println("--->inline remove failed!");
+        map.remove(k);
+        store.put(k, small);
+        putToMap(k, small);
+        store.setInline(0);
+    }
+
+    // -- 覆盖时复用value的链,变长变短vno都不变
+    static void overwriteTest()
+    {
+        byte[] k = new byte[] { 5, 4, 3, 2, 1 };
+        long h = Utils.hash64(k);
+        PersistSegment seg = store.segmentFor(h);
+        int vno = -1;
+        for(int len : new int[] { 5*vsize, 9*vsize + 1, 2*vsize, 1, 7*vsize })
+        {
+            byte[] v = new byte[len];
+            R.nextBytes(v);
+            store.put(k, v);
+            putToMap(k, v);
+            testGet(k, v);
+            int now = seg.PK.getVNO(h, k, new Block.Holder());
+            if(vno != -1 && now != vno)
+                System.out.println("--->overwrite moved value,vno="+vno+",now="+now);
+            vno = now;
+        }
+    }
+
+    // -- 读-改-写:compareAndSet/incrementAndGet/append/merge
+    static void mergeTest()
+    {
+        byte[] k = new byte[] { 8, 8, 8, 1 };
+        store.remove(k);
+        if(store.incrementAndGet(k, 5) != 5 || store.incrementAndGet(k, -2) != 3)
+            System.out.println("--->incrementAndGet failed!");
+        byte[] three = store.get(k);
+        if(!store.compareAndSet(k, three, new byte[] { 1 }) || store.compareAndSet(k, three, new byte[] { 2 }))
+            System.out.println("--->compareAndSet failed!");
+        if(!store.append(k, new byte[] { 2, 3 }) || !Utils.isEquals(new byte[] { 1, 2, 3 }, store.get(k)))
+            System.out.println("--->append failed!");
+        // 合并函数返回null时删除
+        store.merge(k, null, new PersistKVStore.MergeFunction() {
+            public byte[] merge(byte[] k, byte[] old, byte[] operand)
+            {
+                return null;
+            }
+        });
+        if(store.get(k) != null || !store.compareAndSet(k, null, new byte[] { 9 }))
+            System.out.println("--->merge remove failed!");
+        putToMap(k, new byte[] { 9 });
+    }
+
+    // -- 冲突链统计,key数与size()一致
+    static void chainStatsTest()
+    {
+        PersistKVStore.ChainStats st = store.chainStats();
+        System.out.println("chains:"+st);
+        if(st.keys != store.size())
+            log.error("chainStatsTest(),keys="+st.keys+",size="+store.size());
+        if(st.keys > 0 && (st.used == 0 || st.maxChain < 1 || st.maxChain > st.keys))
+            log.error("chainStatsTest(),bad stats:"+st);
+    }
+
+    // -- size class:各种长度的value放到不同的dat文件,覆盖时可换class,重新打开后不变
+    static void sizeClassTest()
+    {
+        int[] classes = new int[] { vsize, 4*vsize, 16*vsize };
+        for(int i=0;i<classes.length;i++)
+            new File("d:/"+PersistSegment.datName("sc", i)).delete();
+        new File("d:/sc.idx").delete();
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore sc = new PersistKVStore("d:/", "sc", ksize, classes, 1000, 1);
+            for(int i=0;i<300;i++)
+            {
+                byte[] k = ("k"+R.nextInt(100)).getBytes();
+                byte[] v = new byte[R.nextInt(40*vsize) + 1];
+                R.nextBytes(v);
+                if(sc.put(k, v))
+                    m.put(new String(k), v);
+            }
+            sc.close();
+            sc = new PersistKVStore("d:/", "sc", ksize, classes, 1000, 1);
+            for(Entry<String, byte[]> e : m.entrySet())
+            {
+                if(!Utils.isEquals(e.getValue(), sc.get(e.getKey().getBytes())))
+                    System.out.println("--->size class get failed!k="+e.getKey());
+            }
+            if(sc.size() != m.size())
+                System.out.println("--->size class size="+sc.size()+",map="+m.size());
+            sc.close();
+        }
+        catch (IOException e)
+        {
+            log.error("sizeClassTest()", e);
+        }
+    }
+
+    // -- 紧凑格式:同样的block数文件更小,重新打开时不论传入的格式都按文件中的格式读
+    static void compactTest()
+    {
+        int kb = 12, vb = 8;
+        new File("d:/fc.idx").delete();
+        new File("d:/fc.dat").delete();
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore fc = new PersistKVStore("d:/", "fc", kb, new int[] { vb }, 1000, 1, PersistKVStore.Format.COMPACT);
+            for(int i=0;i<300;i++)
+            {
+                byte[] k = ("k"+R.nextInt(100)+"_"+R.nextInt(1000)).getBytes();
+                byte[] v = new byte[R.nextInt(5*vb) + 1];
+                R.nextBytes(v);
+                if(fc.put(k, v))
+                    m.put(new String(k), v);
+            }
+            fc.close();
+            if(new File("d:/fc.dat").length() != PersistValue.calcFileBytes(vb, 1000, true))
+                System.out.println("--->compact dat bytes="+new File("d:/fc.dat").length());
+            fc = new PersistKVStore("d:/", "fc", kb, new int[] { vb }, 1000, 1, PersistKVStore.Format.WIDE);
+            for(Entry<String, byte[]> e : m.entrySet())
+            {
+                if(!Utils.isEquals(e.getValue(), fc.get(e.getKey().getBytes())))
+                    System.out.println("--->compact get failed!k="+e.getKey());
+            }
+            if(fc.size() != m.size())
+                System.out.println("--->compact size="+fc.size()+",map="+m.size());
+            fc.close();
+        }
+        catch (IOException e)
+        {
+            log.error("compactTest()", e);
+        }
+    }
+
+    // -- CLOCK淘汰:满了之后put仍然成功,一直被访问的key不会被淘汰
+    static void evictionTest()
+    {
+        new File("d:/ev.idx").delete();
+        new File("d:/ev.dat").delete();
+        try
+        {
+            PersistKVStore ev = new PersistKVStore("d:/", "ev", ksize, vsize, 300);
+            ev.setEviction(PersistKVStore.Eviction.CLOCK);
+            byte[] hot = "hot".getBytes();
+            ev.put(hot, new byte[] { 1, 2, 3 });
+            for(int i=0;i<2000;i++)
+            {
+                if(!ev.put(("k"+i).getBytes(), Utils.encodeInt(i)))
+                    System.out.println("--->eviction put failed!i="+i);
+                if(ev.get(hot) == null)
+                    System.out.println("--->eviction hot key evicted!i="+i);
+            }
+            if(ev.size() >= 2000 || !Utils.isEquals(Utils.encodeInt(1999), ev.get("k1999".getBytes())))
+                System.out.println("--->eviction size="+ev.size());
+            // 淘汰掉所有key也放不下的value:put失败且一个key都不淘汰
+            int size = ev.size();
+            if(ev.put("big".getBytes(), new byte[vsize * 400]) || ev.size() != size)
+                System.out.println("--->eviction oversize put evicted,size="+size+"->"+ev.size());
+            // 有一个op放不下的batch:什么都不写也不淘汰
+            WriteBatch b = new WriteBatch();
+            for(int i=0;i<50;i++)
+                b.put(("b"+i).getBytes(), new byte[vsize * 2]);
+            b.put("big".getBytes(), new byte[vsize * 400]);
+            if(ev.write(b) || ev.size() != size || ev.get("b0".getBytes()) != null || ev.get(hot) == null)
+                System.out.println("--->eviction failed batch evicted,size="+size+"->"+ev.size());
+            ev.close();
+            evictShardsTest();
+            evictScanTest();
+            evictBatchTest();
+        }
+        catch (IOException e)
+        {
+            log.error("evictionTest()", e);
+        }
+    }
+
+    // -- 所有key都被访问过(引用位都为1)时,满了的store上put仍然一次就成功,淘汰别的key而不是失败
+    static void evictScanTest()
+    {
+        deleteStore("vs", 1);
+        try
+        {
+            PersistKVStore vs = new PersistKVStore("d:/", "vs", ksize, vsize, 2000);
+            vs.setEviction(PersistKVStore.Eviction.CLOCK);
+            List<byte[]> keys = new ArrayList<byte[]>();
+            for(int i=0;vs.size() == keys.size();i++)	// 放到第一次淘汰为止
+            {
+                keys.add(("k"+i).getBytes());
+                vs.put(keys.get(i), new byte[vsize]);
+            }
+            for(int round=0;round<3;round++)
+            {
+                for(byte[] k : keys)
+                    vs.get(k);	// 引用位都置1
+                byte[] k = ("new"+round).getBytes();
+                if(!vs.put(k, new byte[vsize]) || vs.get(k) == null)
+                    System.out.println("--->eviction put failed with all keys referenced,round="+round);
+            }
+            vs.close();
+        }
+        catch (IOException e)
+        {
+            log.error("evictScanTest()", e);
+        }
+    }
+
+    // -- 满了的store上batch新加一个key并覆盖一个可能被淘汰的key:batch中的key不能被选去淘汰,成功时都要在
+    static void evictBatchTest()
+    {
+        deleteStore("eb", 1);
+        try
+        {
+            PersistKVStore eb = new PersistKVStore("d:/", "eb", ksize, vsize, 60);
+            eb.setEviction(PersistKVStore.Eviction.CLOCK);
+            List<String> present = new ArrayList<String>();	// 用迭代器取,get()会置引用位
+            for(int i=0;i<2000;i++)
+            {
+                byte[] y = ("y"+i).getBytes();
+                byte[] x = present.isEmpty() ? null : present.get(R.nextInt(present.size())).getBytes();
+                WriteBatch b = new WriteBatch();
+                b.put(y, new byte[vsize]);
+                if(x != null)
+                    b.put(x, new byte[R.nextInt(vsize * 15) + 1]);
+                for(String k : present)
+                    eb.get(k.getBytes());	// 引用位都置1,淘汰时转一圈后被覆盖的key和别的key一样可能被选中
+                if(!eb.write(b))
+                {
+                    System.out.println("--->eviction batch write failed,i="+i);
+                    break;
+                }
+                present.clear();
+                for(Iterator<byte[]> it = eb.keyIterator();it.hasNext();)
+                    present.add(new String(it.next()));
+                if(!present.contains(new String(y)) || (x != null && !present.contains(new String(x))))
+                {
+                    System.out.println("--->eviction batch lost a key of the batch,i="+i);
+                    break;
+                }
+            }
+            eb.close();
+        }
+        catch (IOException e)
+        {
+            log.error("evictBatchTest()", e);
+        }
+    }
+
+    // -- 一个分片要淘汰才放得下,另一个分片怎么也放不下时,batch失败且两个分片都不淘汰
+    static void evictShardsTest()
+    {
+        deleteStore("es", 2);
+        try
+        {
+            PersistKVStore es = new PersistKVStore("d:/", "es", ksize, vsize, 200, 2);
+            es.setEviction(PersistKVStore.Eviction.CLOCK);
+            for(int i=0;i<1000;i++)
+                es.put(("k"+i).getBytes(), new byte[vsize]);
+            int size = es.size();
+            WriteBatch b = new WriteBatch();
+            byte[] big = null;
+            for(int i=0;big == null;i++)
+            {
+                byte[] k = ("b"+i).getBytes();
+                if(es.segmentFor(Utils.hash64(k)) == es.segments[0])
+                    b.put(k, new byte[vsize * 20]);	// 满了,要淘汰
+                else
+                    big = k;
+            }
+            b.put(big, new byte[vsize * 400]);
+            if(es.write(b) || es.size() != size)
+                System.out.println("--->eviction shards failed batch evicted,size="+size+"->"+es.size());
+            es.close();
+        }
+        catch (IOException e)
+        {
+            log.error("evictShardsTest()", e);
+        }
+    }
+
+    // -- PersistLimitMap:与HashMap的行为一致,STRING与String.getBytes()的编码相同
+    static void limitMapTest()
+    {
+        new File("d:/lm.idx").delete();
+        new File("d:/lm.dat").delete();
+        try
+        {
+            PersistKVStore lm = new PersistKVStore("d:/", "lm", ksize, vsize, 10000);
+            PersistLimitMap<String, Long> pm = new PersistLimitMap<String, Long>(lm, PersistLimitMap.STRING, PersistLimitMap.LONG);
+            Map<String, Long> m = new HashMap<String, Long>();
+            for(int i=0;i<500;i++)
+            {
+                String k = "键"+R.nextInt(200)+(i % 7 == 0 ? "\uD83D\uDE00" : "");
+                long v = R.nextLong();
+                if(i % 5 == 0)
+                {
+                    if(!eq(m.remove(k), pm.remove(k)))
+                        System.out.println("--->limit map remove failed!k="+k);
+                } else if(!eq(m.put(k, v), pm.put(k, v)))
+                    System.out.println("--->limit map put failed!k="+k);
+            }
+            if(!m.equals(pm) || !pm.equals(m) || !m.keySet().equals(pm.keySet()))
+                System.out.println("--->limit map not equal!size="+pm.size()+",map="+m.size());
+            for(String k : m.keySet())
+            {
+                if(lm.get(k.getBytes(StandardCharsets.UTF_8)) == null)
+                    System.out.println("--->limit map utf8 differs!k="+k);
+            }
+            // 空串编码为0字节,内联在key里
+            PersistLimitMap<String, String> sm = new PersistLimitMap<String, String>(lm, PersistLimitMap.STRING, PersistLimitMap.STRING);
+            if(sm.put("空", "") != null || !"".equals(sm.get("空")) || !"".equals(sm.put("空", "x")) || !"x".equals(sm.remove("空")))
+                System.out.println("--->limit map empty value failed!");
+            String k = m.keySet().iterator().next();
+            pm.clear();
+            if(!pm.isEmpty() || pm.containsKey(k))
+                System.out.println("--->limit map clear failed!size="+pm.size());
+            lm.close();
+        }
+        catch (IOException e)
+        {
+            log.error("limitMapTest()", e);
+        }
+    }
+
+    // -- 分片key迭代器的remove():连同value删除,迭代继续,没删的key都还在
+    static void itrRemoveTest()
+    {
+        new File("d:/ir.idx").delete();
+        new File("d:/ir.dat").delete();
+        try
+        {
+            PersistKVStore ir = new PersistKVStore("d:/", "ir", ksize, vsize, 1000);
+            for(int i=0;i<200;i++)
+                ir.put(("k"+i).getBytes(), Utils.encodeInt(i));
+            int seen = 0;
+            for(PersistSegment seg : ir.segments)
+            {
+                long stamp = seg.locker.writeLock();
+                try
+                {
+                    for(Iterator<byte[]> it = seg.keyIterator();it.hasNext();)
+                    {
+                        if(Integer.parseInt(new String(it.next()).substring(1)) % 2 == 0)
+                            it.remove();
+                        seen++;
+                    }
+                } finally
+                {
+                    seg.locker.unlockWrite(stamp);
+                }
+            }
+            if(seen != 200 || ir.size() != 100)
+                System.out.println("--->iterator remove failed!seen="+seen+",size="+ir.size());
+            for(int i=0;i<200;i++)
+            {
+                byte[] v = ir.get(("k"+i).getBytes());
+                if(i % 2 == 0 ? v != null : !Utils.isEquals(Utils.encodeInt(i), v))
+                    System.out.println("--->iterator remove wrong key!i="+i);
+            }
+            ir.close();
+        }
+        catch (IOException e)
+        {
+            log.error("itrRemoveTest()", e);
+        }
+    }
+
+    // -- 旧版本的文件及没有header的文件打不开,也不会被格式化覆盖
+    static void versionTest()
+    {
+        new File("d:/vt.idx").delete();
+        new File("d:/vt.dat").delete();
+        try
+        {
+            PersistKVStore vt = new PersistKVStore("d:/", "vt", ksize, vsize, 100);
+            vt.put(new byte[] { 1 }, new byte[] { 2 });
+            vt.close();
+            RandomAccessFile raf = new RandomAccessFile("d:/vt.idx", "rw");
+            raf.seek(4);
+            raf.writeInt(3);	// version
+            raf.close();
+            openShouldFail("vt", "version=3");
+            // 没有header的旧文件:第一个block的nextPointer为0,但文件不空
+            raf = new RandomAccessFile("d:/vt.idx", "rw");
+            raf.setLength(0);
+            raf.writeInt(0);
+            raf.writeInt(3);
+            raf.writeInt(7);
+            raf.close();
+            openShouldFail("vt", "magic=0");
+            if(new File("d:/vt.idx").length() != 12)
+                System.out.println("--->version headerless file changed!len="+new File("d:/vt.idx").length());
+        }
+        catch (IOException e)
+        {
+            log.error("versionTest()", e);
+        }
+    }
+
+    private static void openShouldFail(String name, String msg) throws IOException
+    {
+        try
+        {
+            new PersistKVStore("d:/", name, ksize, vsize, 100).close();
+            System.out.println("--->version "+msg+" opened!");
+        }
+        catch (IllegalArgumentException e)
+        {
+            if(e.getMessage() == null || !e.getMessage().contains(msg))
+                System.out.println("--->version wrong error:"+e.getMessage());
+        }
+    }
+
+    // -- 未正常关闭后扫描恢复:不close()直接重新打开,header中clean为0,相当于崩溃后重启
+    //    每个分片的idx/dat分多个RECOVER_CHUNK并行扫描,恢复出的数据,key数及空闲链都要可用
+    static void recoverTest()
+    {
+        int[] classes = new int[] { vsize };
+        deleteStore("rc", 2);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore rc = new PersistKVStore("d:/", "rc", ksize, classes, 400000, 2);
+            for(int i=0;i<20000;i++)
+            {
+                byte[] v = new byte[R.nextInt(20*vsize) + 1];
+                R.nextBytes(v);
+                if(!rc.put(("k"+i).getBytes(), v))
+                {
+                    System.out.println("--->recover put failed!i="+i);
+                    return;
+                }
+                m.put("k"+i, v);
+            }
+            // 删掉一部分,各段都留下空闲block
+            for(int i=0;i<20000;i+=3)
+            {
+                rc.remove(("k"+i).getBytes());
+                m.remove("k"+i);
+            }
+            rc = new PersistKVStore("d:/", "rc", ksize, classes, 400000, 2);
+            if(!sameAs(rc, m, "recover"))
+                return;
+            // 恢复出的空闲链可以再分配
+            for(int i=0;i<20000;i+=3)
+            {
+                byte[] v = new byte[R.nextInt(20*vsize) + 1];
+                R.nextBytes(v);
+                if(!rc.put(("k"+i).getBytes(), v))
+                {
+                    System.out.println("--->recover put after recover failed!i="+i);
+                    return;
+                }
+                m.put("k"+i, v);
+            }
+            rc.close();
+            rc = new PersistKVStore("d:/", "rc", ksize, classes, 400000, 2);
+            if(!sameAs(rc, m, "recover reopen"))
+                return;
+            // 再崩溃一次,恢复后能写入的个数与新建的store相同,空闲链没有丢block
+            rc = new PersistKVStore("d:/", "rc", ksize, classes, 400000, 2);
+            deleteStore("rc2", 2);
+            PersistKVStore fresh = new PersistKVStore("d:/", "rc2", ksize, classes, 400000, 2);
+            int n = refill(rc), expect = refill(fresh);
+            if(n != expect)
+                System.out.println("--->recover lost blocks!refill="+n+",fresh="+expect);
+            rc.close();
+            fresh.close();
+        }
+        catch (IOException e)
+        {
+            log.error("recoverTest()", e);
+        }
+    }
+
+    /*
+     * 删掉全部key后用同样大小的value写满,返回写入的个数
+     */
+    private static int refill(PersistKVStore s)
+    {
+        for(Iterator<byte[]> it = s.keyIterator();it.hasNext();)
+        {
+            it.next();
+            it.remove();
+        }
+        int n = 0;
+        while(s.put(("f"+n).getBytes(), new byte[30*vsize]))
+            n++;
+        return n;
+    }
+
+    // -- block按bno寻址:写满一个小store(用到最后一个block),多block的key/value在正常关闭及崩溃后重新打开都不变
+    static void blockTest()
+    {
+        deleteStore("bt", 1);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore bt = new PersistKVStore("d:/", "bt", ksize, vsize, 2000);
+            for(int i=0;;i++)
+            {
+                StringBuilder k = new StringBuilder("k"+i);
+                for(int j=R.nextInt(4*ksize);j>0;j--)
+                    k.append('x');
+                byte[] v = new byte[R.nextInt(8*vsize) + 1];
+                R.nextBytes(v);
+                if(!bt.put(k.toString().getBytes(), v))
+                    break;
+                m.put(k.toString(), v);
+            }
+            // 再用最小的key/value填到文件的最后一个block
+            for(int i=0;bt.put(("s"+i).getBytes(), new byte[] { (byte)i });i++)
+                m.put("s"+i, new byte[] { (byte)i });
+            if(!sameAs(bt, m, "block"))
+                return;
+            bt.close();
+            bt = new PersistKVStore("d:/", "bt", ksize, vsize, 2000);
+            if(!sameAs(bt, m, "block reopen"))
+                return;
+            bt = new PersistKVStore("d:/", "bt", ksize, vsize, 2000);
+            sameAs(bt, m, "block recover");
+            bt.close();
+        }
+        catch (IOException e)
+        {
+            log.error("blockTest()", e);
+        }
+    }
+
+    // -- 空闲链在文件中:正常关闭后重新打开直接用header中的栈顶,删掉的block都还能再分配,不多不少
+    static void freeListTest()
+    {
+        deleteStore("fl", 1);
+        try
+        {
+            PersistKVStore fl = new PersistKVStore("d:/", "fl", ksize, vsize, 3000);
+            int n = refill(fl);
+            for(int i=0;i<n;i+=2)
+                fl.remove(("f"+i).getBytes());
+            fl.close();
+            fl = new PersistKVStore("d:/", "fl", ksize, vsize, 3000);
+            for(int i=0;i<n;i+=2)
+            {
+                if(!fl.put(("f"+i).getBytes(), new byte[30*vsize]))
+                {
+                    System.out.println("--->free list lost blocks!i="+i+",n="+n);
+                    break;
+                }
+            }
+            if(fl.size() != n || fl.put("extra".getBytes(), new byte[30*vsize]))
+                System.out.println("--->free list wrong count!size="+fl.size()+",n="+n);
+            fl.close();
+            fl = new PersistKVStore("d:/", "fl", ksize, vsize, 3000);
+            if(refill(fl) != n)
+                System.out.println("--->free list refill differs!n="+n);
+            fl.close();
+        }
+        catch (IOException e)
+        {
+            log.error("freeListTest()", e);
+        }
+    }
+
+    // -- 分片:多线程并发写不同的key,重新打开(正常关闭及崩溃)后不变,分片数不同时打不开
+    static void shardTest()
+    {
+        deleteStore("sh", 4);
+        final Map<String, byte[]> m = new ConcurrentHashMap<String, byte[]>();
+        try
+        {
+            final PersistKVStore sh = new PersistKVStore("d:/", "sh", ksize, new int[] { vsize }, 40000, 4);
+            Thread[] ts = new Thread[4];
+            for(int t=0;t<ts.length;t++)
+            {
+                final int no = t;
+                ts[t] = new Thread() {
+                    public void run()
+                    {
+                        Random r = new Random(no);
+                        for(int i=0;i<1000;i++)
+                        {
+                            String k = "t"+no+"_"+r.nextInt(500);
+                            if(r.nextInt(4) == 0)
+                            {
+                                sh.remove(k.getBytes());
+                                m.remove(k);
+                                continue;
+                            }
+                            byte[] v = new byte[r.nextInt(10*vsize) + 1];
+                            r.nextBytes(v);
+                            if(sh.put(k.getBytes(), v))
+                                m.put(k, v);
+                            else
+                                System.out.println("--->shard put failed!k="+k);
+                        }
+                    }
+                };
+                ts[t].start();
+            }
+            for(Thread t : ts)
+                t.join();
+            if(!sameAs(sh, m, "shard"))
+                return;
+            sh.close();
+            PersistKVStore re = new PersistKVStore("d:/", "sh", ksize, new int[] { vsize }, 40000, 4);
+            if(!sameAs(re, m, "shard reopen"))
+                return;
+            re = new PersistKVStore("d:/", "sh", ksize, new int[] { vsize }, 40000, 4);
+            if(!sameAs(re, m, "shard recover"))
+                return;
+            re.close();
+            try
+            {
+                new PersistKVStore("d:/", "sh", ksize, new int[] { vsize }, 40000, 2).close();
+                System.out.println("--->shard opened with other shard count!");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // 期望:header中记录的分片数不同
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("shardTest()", e);
+        }
+        catch (InterruptedException e)
+        {
+            log.error("shardTest()", e);
+        }
+    }
+
+    // -- 乐观读:写线程不停地覆盖/删除时,并发的get()只会读到完整的value(长度n的value每个字节都是n)
+    static void optimisticGetTest()
+    {
+        deleteStore("og", 1);
+        final Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            final PersistKVStore og = new PersistKVStore("d:/", "og", ksize, vsize, 20000);
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicInteger bad = new AtomicInteger();
+            Thread[] readers = new Thread[3];
+            for(int t=0;t<readers.length;t++)
+            {
+                readers[t] = new Thread() {
+                    public void run()
+                    {
+                        Random r = new Random();
+                        while(!done.get())
+                        {
+                            byte[] v = og.get(("k"+r.nextInt(50)).getBytes());
+                            for(int i=0;v != null && i<v.length;i++)
+                            {
+                                if(v[i] != (byte)v.length)
+                                {
+                                    bad.incrementAndGet();
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                };
+                readers[t].start();
+            }
+            Random r = new Random();
+            for(int i=0;i<50000;i++)
+            {
+                String k = "k"+r.nextInt(50);
+                if(r.nextInt(5) == 0)
+                {
+                    og.remove(k.getBytes());
+                    m.remove(k);
+                    continue;
+                }
+                byte[] v = new byte[r.nextInt(20*vsize) + 1];
+                Arrays.fill(v, (byte)v.length);
+                if(og.put(k.getBytes(), v))
+                    m.put(k, v);
+            }
+            done.set(true);
+            for(Thread t : readers)
+                t.join();
+            if(bad.get() > 0)
+                System.out.println("--->optimistic get read torn values!bad="+bad.get());
+            if(!sameAs(og, m, "optimistic get"))
+                return;
+            og.close();
+            PersistKVStore re = new PersistKVStore("d:/", "og", ksize, vsize, 20000);
+            sameAs(re, m, "optimistic get reopen");
+            re.close();
+        }
+        catch (IOException e)
+        {
+            log.error("optimisticGetTest()", e);
+        }
+        catch (InterruptedException e)
+        {
+            log.error("optimisticGetTest()", e);
+        }
+    }
+
+    // -- 多region映射:region调得很小,key/value的链跨多个region,重新打开后不变;
+    //    文件布局与region大小无关,用默认的region大小也能打开
+    static void regionTest()
+    {
+        deleteStore("rg", 1);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore rg = tinyRegions("rg", 5000);
+            for(int i=0;i<300;i++)
+            {
+                byte[] v = new byte[R.nextInt(20*vsize) + 1];
+                R.nextBytes(v);
+                if(rg.put(("k"+i+"_"+i).getBytes(), v))
+                    m.put("k"+i+"_"+i, v);
+            }
+            if(!sameAs(rg, m, "region"))
+                return;
+            rg.close();
+            rg = tinyRegions("rg", 5000);
+            if(!sameAs(rg, m, "region reopen"))
+                return;
+            rg = tinyRegions("rg", 5000);
+            if(!sameAs(rg, m, "region recover"))
+                return;
+            rg.close();
+            rg = new PersistKVStore("d:/", "rg", ksize, vsize, 5000);	// 默认的region大小
+            sameAs(rg, m, "region default size");
+            rg.close();
+        }
+        catch (IOException e)
+        {
+            log.error("regionTest()", e);
+        }
+    }
+
+    // -- 在线扩容:从很小的文件写到多个region,期间并发读的key一直可读,
+    //    重新打开(正常关闭及崩溃)时按header中扩容后的block数映射;扩到上限后put失败,文件不超过上限
+    static void growthTest()
+    {
+        deleteStore("gr", 1);
+        deleteStore("gl", 1);
+        final Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            final PersistKVStore gr = tinyRegions("gr", 100);
+            gr.setGrowth(1.5f, 1L << 30);
+            final byte[] first = new byte[5*vsize];
+            R.nextBytes(first);
+            gr.put("first".getBytes(), first);
+            m.put("first", first);
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicInteger bad = new AtomicInteger();
+            Thread reader = new Thread() {
+                public void run()
+                {
+                    while(!done.get())
+                    {
+                        if(!Utils.isEquals(first, gr.get("first".getBytes())))
+                            bad.incrementAndGet();
+                    }
+                }
+            };
+            reader.start();
+            for(int i=0;i<3000;i++)
+            {
+                byte[] v = new byte[R.nextInt(10*vsize) + 1];
+                R.nextBytes(v);
+                if(!gr.put(("k"+i).getBytes(), v))
+                {
+                    System.out.println("--->growth put failed!i="+i);
+                    break;
+                }
+                m.put("k"+i, v);
+            }
+            done.set(true);
+            reader.join();
+            if(bad.get() > 0)
+                System.out.println("--->growth reader failed!bad="+bad.get());
+            if(!sameAs(gr, m, "growth"))
+                return;
+            gr.close();
+            PersistKVStore re = tinyRegions("gr", 100);
+            if(!sameAs(re, m, "growth reopen"))
+                return;
+            re = tinyRegions("gr", 100);
+            if(!sameAs(re, m, "growth recover"))
+                return;
+            re.close();
+            // 上限
+            PersistKVStore gl = tinyRegions("gl", 100);
+            long limit = 3 * new File("d:/gl.idx").length();
+            gl.setGrowth(2f, limit);
+            int n = 0;
+            while(n < 100000 && gl.put(("k"+n).getBytes(), new byte[vsize]))
+                n++;
+            gl.close();
+            if(n == 100000 || new File("d:/gl.idx").length() > limit || new File("d:/gl.dat").length() > limit)
+                System.out.println("--->growth limit failed!n="+n+",idx="+new File("d:/gl.idx").length()+",limit="+limit);
+        }
+        catch (IOException e)
+        {
+            log.error("growthTest()", e);
+        }
+        catch (InterruptedException e)
+        {
+            log.error("growthTest()", e);
+        }
+    }
+
+    /*
+     * region只有4096字节的store,key/value的链跨多个region
+     */
+    private static PersistKVStore tinyRegions(String name, int count) throws IOException
+    {
+        return new PersistKVStore("d:/", name, ksize, new int[]{ vsize }, count, 1, PersistKVStore.Format.WIDE, 4096);
+    }
+
+    // -- 持久化策略:OS不主动刷;GROUP_COMMIT的put返回时已刷盘,并发的写共用刷盘;PERIODIC由后台线程刷,close()后线程退出;
+    //    崩溃后重新打开,返回过的写都在
+    static void durabilityTest()
+    {
+        deleteStore("du", 1);
+        final Map<String, byte[]> m = new ConcurrentHashMap<String, byte[]>();
+        try
+        {
+            final PersistKVStore du = new PersistKVStore("d:/", "du", ksize, vsize, 20000);
+            PersistSegment seg = du.segments[0];
+            du.put("os".getBytes(), new byte[] { 1 });
+            m.put("os", new byte[] { 1 });
+            if(seg.flushDirty() == 0)
+                System.out.println("--->durability OS put left nothing to flush!");
+            du.setDurability(PersistKVStore.Durability.GROUP_COMMIT, 0);
+            Thread[] ts = new Thread[4];
+            for(int t=0;t<ts.length;t++)
+            {
+                final int no = t;
+                ts[t] = new Thread() {
+                    public void run()
+                    {
+                        for(int i=0;i<200;i++)
+                        {
+                            byte[] v = Utils.encodeInt(i);
+                            if(du.put(("g"+no+"_"+i).getBytes(), v))
+                                m.put("g"+no+"_"+i, v);
+                        }
+                    }
+                };
+                ts[t].start();
+            }
+            for(Thread t : ts)
+                t.join();
+            du.put("gc".getBytes(), new byte[] { 2 });
+            m.put("gc", new byte[] { 2 });
+            if(seg.flushDirty() != 0)
+                System.out.println("--->durability GROUP_COMMIT put returned before force!");
+            du.setDurability(PersistKVStore.Durability.PERIODIC, 20);
+            du.put("pd".getBytes(), new byte[] { 3 });
+            m.put("pd", new byte[] { 3 });
+            Thread.sleep(500);
+            if(seg.flushDirty() != 0)
+                System.out.println("--->durability PERIODIC did not flush!");
+            du.setDurability(PersistKVStore.Durability.OS, 0);	// 停掉后台线程再模拟崩溃
+            PersistKVStore re = new PersistKVStore("d:/", "du", ksize, vsize, 20000);
+            if(!sameAs(re, m, "durability recover"))
+                return;
+            re.setDurability(PersistKVStore.Durability.PERIODIC, 20);
+            re.close();
+            for(Thread t : Thread.getAllStackTraces().keySet())
+            {
+                if(t.getName().equals("kvstore-flusher"))
+                    System.out.println("--->durability flusher still running after close!");
+            }
+        }
+        catch (IOException e)
+        {
+            log.error("durabilityTest()", e);
+        }
+        catch (InterruptedException e)
+        {
+            log.error("durabilityTest()", e);
+        }
+    }
+
+    // -- 脏范围:flushDirty()只刷写过的64K chunk,一次小的put只刷几个chunk,远小于文件;刷过后没有脏的范围
+    static void dirtyTest()
+    {
+        deleteStore("dt", 1);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore dt = new PersistKVStore("d:/", "dt", ksize, vsize, 500000);
+            PersistSegment seg = dt.segments[0];
+            long fileBytes = new File("d:/dt.idx").length() + new File("d:/dt.dat").length();
+            seg.flushDirty();
+            for(int i=0;i<100;i++)
+            {
+                byte[] v = new byte[R.nextInt(vsize) + 1];
+                R.nextBytes(v);
+                dt.put(("k"+i).getBytes(), v);
+                m.put("k"+i, v);
+                // idx的header,bucket,key block及dat的header,value block,每处最多跨两个chunk
+                long bytes = seg.flushDirty();
+                if(bytes <= 0 || bytes > 10 * (1 << 16) || bytes * 4 > fileBytes)
+                {
+                    System.out.println("--->dirty flushed "+bytes+" bytes of "+fileBytes+" for one put!");
+                    break;
+                }
+                if(seg.flushDirty() != 0)
+                {
+                    System.out.println("--->dirty ranges left after flush!");
+                    break;
+                }
+            }
+            PersistKVStore re = new PersistKVStore("d:/", "dt", ksize, vsize, 500000);
+            sameAs(re, m, "dirty recover");
+            re.close();
+        }
+        catch (IOException e)
+        {
+            log.error("dirtyTest()", e);
+        }
+    }
+
+    // -- mmap中比较key:hash相同(同bucket同指纹)的多block key,只在某一个字节或长度上不同,get/remove都要分得清
+    static void keyCompareTest()
+    {
+        deleteStore("kc", 1);
+        final long h = 0x1234567890abcdefL;	// 所有key用同一个hash,只能靠逐字节比较区分
+        byte[] base = new byte[21];
+        R.nextBytes(base);
+        List<byte[]> keys = new ArrayList<byte[]>();
+        keys.add(base);
+        for(int pos : new int[]{ 0, 4, 5, 10, 19, 20 })	// 首字节,block边界两侧,末字节
+        {
+            byte[] k = base.clone();
+            k[pos] ^= 1;
+            keys.add(k);
+        }
+        keys.add(Arrays.copyOf(base, 20));	// 前缀
+        keys.add(Arrays.copyOf(base, 22));	// 多一个字节
+        try
+        {
+            PersistKVStore kc = new PersistKVStore("d:/", "kc", ksize, vsize, 2000);
+            PersistSegment seg = kc.segments[0];
+            for(int i=0;i<keys.size();i++)
+                if(!seg.put(h, keys.get(i), new byte[]{ (byte)i }))
+                    System.out.println("--->key compare put failed,i="+i);
+            for(int i=0;i<keys.size();i++)
+                if(!Utils.isEquals(seg.get(h, keys.get(i)), new byte[]{ (byte)i }))
+                    System.out.println("--->key compare get failed,i="+i);
+            // 删掉末字节不同的那个,其余的都还在
+            if(!Utils.isEquals(seg.remove(h, keys.get(6)), new byte[]{ 6 }))
+                System.out.println("--->key compare remove failed!");
+            byte[] missing = base.clone();
+            missing[12] ^= 1;
+            if(seg.get(h, keys.get(6)) != null || seg.get(h, missing) != null || seg.remove(h, missing) != null)
+                System.out.println("--->key compare found a key never put or removed!");
+            PersistKVStore re = new PersistKVStore("d:/", "kc", ksize, vsize, 2000);
+            PersistSegment reSeg = re.segments[0];
+            for(int i=0;i<keys.size();i++)
+            {
+                byte[] v = reSeg.get(h, keys.get(i));
+                if(i == 6 ? v != null : !Utils.isEquals(v, new byte[]{ (byte)i }))
+                    System.out.println("--->key compare recover failed,i="+i);
+            }
+            re.close();
+        }
+        catch (IOException e)
+        {
+            log.error("keyCompareTest()", e);
+        }
+    }
+
+    // -- block的批量拷贝:1..n每种长度的value都跨不同的block边界,get/get(ByteBuffer)/getView读到的要一致
+    static void copyTest()
+    {
+        deleteStore("bc", 1);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore bc = new PersistKVStore("d:/", "bc", ksize, 7, 20000);
+            for(int len=1;len<=200;len++)
+                copyPut(bc, m, "b"+len, len);
+            copyCheck(bc, m, "copy");
+            // 删掉奇数长度的再换内容加回来,复用回收的block
+            for(int len=1;len<=200;len+=2)
+                bc.remove(("b"+len).getBytes());
+            for(int len=1;len<=200;len+=2)
+                copyPut(bc, m, "b"+len, len);
+            copyCheck(bc, m, "copy readd");
+            PersistKVStore re = new PersistKVStore("d:/", "bc", ksize, 7, 20000);
+            copyCheck(re, m, "copy recover");
+            re.close();
+        }
+        catch (IOException e)
+        {
+            log.error("copyTest()", e);
+        }
+    }
+
+    private static void copyPut(PersistKVStore s, Map<String, byte[]> m, String k, int len)
+    {
+        byte[] v = new byte[len];
+        R.nextBytes(v);
+        if(!s.put(k.getBytes(), v))
+            System.out.println("--->copy put failed,k="+k);
+        m.put(k, v);
+    }
+
+    private static void copyCheck(PersistKVStore s, Map<String, byte[]> m, String name)
+    {
+        if(!sameAs(s, m, name))
+            return;
+        for(Entry<String, byte[]> e : m.entrySet())
+        {
+            byte[] k = e.getKey().getBytes();
+            byte[] v = e.getValue();
+            ByteBuffer dst = ByteBuffer.allocate(v.length + 2);
+            dst.position(1);	// 不从0开始写
+            int n = s.get(k, dst);
+            byte[] got = Arrays.copyOfRange(dst.array(), 1, 1 + v.length);
+            if(n != v.length || dst.position() != 1 + v.length || !Utils.isEquals(got, v))
+            {
+                System.out.println("--->"+name+" get(ByteBuffer) failed,k="+e.getKey());
+                return;
+            }
+            ValueView view = s.getView(k);
+            if(view == null || view.length() != v.length || !Utils.isEquals(view.toArray(), v))
+            {
+                System.out.println("--->"+name+" getView failed,k="+e.getKey());
+                return;
+            }
+        }
+    }
+
+    // -- 连续的run:空闲链上只有零散的block时,多block的value仍分到bno连续的block,恢复后链不变
+    static void runTest()
+    {
+        deleteStore("cr", 1);
+        Map<String, byte[]> m = new HashMap<String, byte[]>();
+        try
+        {
+            PersistKVStore cr = new PersistKVStore("d:/", "cr", ksize, 7, 20000);
+            // 隔一个删一个单block的value,空闲链上都是不相邻的block
+            for(int i=0;i<100;i++)
+                copyPut(cr, m, "s"+i, 1);
+            for(int i=0;i<100;i+=2)
+            {
+                cr.remove(("s"+i).getBytes());
+                m.remove("s"+i);
+            }
+            for(int len=8;len<=300;len++)
+                copyPut(cr, m, "r"+len, len);
+            checkRuns(cr, m, "run");
+            PersistKVStore re = new PersistKVStore("d:/", "cr", ksize, 7, 20000);
+            if(sameAs(re, m, "run recover"))
+                checkRuns(re, m, "run recover");
+            re.close();
+        }
+        catch (IOException e)
+        {
+            log.error("runTest()", e);
+        }
+    }
+
+    private static void checkRuns(PersistKVStore s, Map<String, byte[]> m, String name)
+    {
+        PersistSegment seg = s.segments[0];
+        for(String key : m.keySet())
+        {
+            if(!key.startsWith("r"))
+                continue;
+            byte[] k = key.getBytes();
+            int vno = seg.PK.getVNO(Utils.hash64(k), k, new Block.Holder());
+            int n = seg.PV.blocksOf(vno);
+            if(n < 2 || seg.PV.runOf(vno) != n)
+            {
+                System.out.println("--->"+name+" not contiguous,k="+key+",blocks="+n+",run="+seg.PV.runOf(vno));
+                return;
+            }
+        }
+    }
+
+    // -- 紧凑格式的len在头block的数据区中,乐观读可能读到重用的block里的用户数据:超出范围的len不能拿来分配内存
+    static void lenTest()
+    {
+        deleteStore("tl", 1);
+        try
+        {
+            PersistKVStore tl = new PersistKVStore("d:/", "tl", 12, new int[]{ 8 }, 1000, 1, PersistKVStore.Format.COMPACT);
+            byte[] k = "len".getBytes();
+            tl.put(k, new byte[20]);
+            int vno = tl.segments[0].PK.getVNO(Utils.hash64(k), k, new Block.Holder());
+            // 模拟重用的block:直接在文件中把头block的len改成一个很大的数,mmap与文件共享页
+            RandomAccessFile raf = new RandomAccessFile("d:/tl.dat", "rw");
+            raf.seek(PersistFile.HEADER_BYTES + (long)(vno - 1) * (Block.C_META + 8) + Block.C_META);
+            raf.writeInt(0x7ffffff0);
+            raf.close();
+            int thrown = 0;
+            try
+            {
+                tl.get(k);
+            } catch (IllegalStateException e)
+            {
+                thrown ++;
+            }
+            try
+            {
+                tl.getView(k);
+            } catch (IllegalStateException e)
+            {
+                thrown ++;
+            }
+            try
+            {
+                tl.get(k, ByteBuffer.allocate(64));
+            } catch (IllegalStateException e)
+            {
+                thrown ++;
+            }
+            if(thrown != 3)
+                System.out.println("--->len out of range accepted,thrown="+thrown);
+            tl.close();
+        }
+        catch (IOException e)
+        {
+            log.error("lenTest()", e);
+        }
+    }
+
+    /*
+     * s与m一致:每个key的value,key个数,迭代器中的key
+     */
+    private static boolean sameAs(PersistKVStore s, Map<String, byte[]> m, String name)
+    {
+        for(Entry<String, byte[]> e : m.entrySet())
+        {
+            if(!Utils.isEquals(e.getValue(), s.get(e.getKey().getBytes())))
+            {
+                System.out.println("--->"+name+" get failed!k="+e.getKey());
+                return false;
+            }
+        }
+        int n = 0;
+        for(Iterator<byte[]> it = s.keyIterator();it.hasNext();n++)
+        {
+            String k = new String(it.next());
+            if(!m.containsKey(k))
+            {
+                System.out.println("--->"+name+" iterator extra key!k="+k);
+                return false;
+            }
+        }
+        if(n != m.size() || s.size() != m.size())
+        {
+            System.out.println("--->"+name+" size="+s.size()+",iterated="+n+",map="+m.size());
+            return false;
+        }
+        return true;
+    }
+
+    /*
+     * 删除store的文件,分片时文件名带分片号
+     */
+    private static void deleteStore(String name, int shards)
+    {
+        for(int i=0;i<shards;i++)
+        {
+            String f = shards == 1 ? name : name+"_"+i;
+            new File("d:/"+f+".idx").delete();
+            new File("d:/"+f+".dat").delete();
+        }
+    }
+
+    private static boolean eq(Object a, Object b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    // -- 正常关闭后重新打开,数据及key个数不变
+    static void reopenTest()
+    {
+        try
+        {
+            store.close();
+            store = new PersistKVStore("d:/", "t", ksize, vsize, fsize);
+        }
+        catch (IOException e)
+        {
+            log.error("reopenTest()", e);
+            return;
+        }
+        if(!matchStore() || !matchItr() || store.size() != map.size())
+            System.out.println("--->reopen failed!size="+store.size()+",map="+map.size());
+    }
+    
     private static void putToMap(byte[] key, byte[] value)
     {
     	for(byte[] k : map.keySet())